@@ -0,0 +1,88 @@
+package com.demod.crypto.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+import org.web3j.protocol.Web3j;
+
+import com.demod.crypto.evm.AddressIndex;
+import com.demod.crypto.evm.AddressIndex.LookupResult;
+import com.demod.crypto.evm.RPC;
+import com.demod.crypto.evm.Web3Helper;
+import com.demod.crypto.evm.Web3Helper.FindTransactionsResult;
+import com.demod.crypto.util.ConsoleArgs;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ContiguousSet;
+
+// Builds an address index over a sample range, then checks a lookup finds the same txs as the scan
+// Uses the wallets and address-index settings in config.json, nothing under data/address-index is touched
+public class AddressIndexCheck {
+
+	public static void main(String[] args) throws IOException {
+		RPC rpc = RPC
+				.byName(ConsoleArgs.argStringChoice("AddressIndexCheck", "RPC", args, 0, "Ethereum", RPC.getNames()));
+		int firstBlock = ConsoleArgs.argInt("AddressIndexCheck", "First Block", args, 1, 0);
+		int blockCount = ConsoleArgs.argInt("AddressIndexCheck", "Block Count", args, 2, 1000);
+
+		File configFile = new File("data/config.json");
+		Preconditions.checkState(configFile.exists());
+		JSONObject configJson = new JSONObject(Files.readString(configFile.toPath()));
+		List<String> accounts = configJson.getJSONObject("wallets").keySet().stream().collect(Collectors.toList());
+
+		Web3j web3 = rpc.createWeb3();
+		Web3Helper web3Helper = new Web3Helper(web3, rpc);
+		ContiguousSet<Long> range = Web3Helper.contiguousSet(firstBlock, firstBlock + blockCount - 1);
+
+		File indexFolder = Files.createTempDirectory("address-index-check").toFile();
+		try {
+			System.out.println("Scanning blocks " + range.first() + " to " + range.last() + "...");
+			AddressIndex addressIndex = new AddressIndex(indexFolder, AddressIndex.Options.fromConfig(configJson));
+			web3Helper.setScanListener(addressIndex);
+			Set<String> scanHashes = new LinkedHashSet<>();
+			FindTransactionsResult scanResult = web3Helper.findTransactionsWithAccounts(range, accounts,
+					rpc.getBatchSize(), found -> scanHashes.add(found.hash.toLowerCase()));
+			addressIndex.flush();
+			web3Helper.setScanListener(null);
+			Preconditions.checkState(!scanResult.partialResult, "Scan did not finish!");
+
+			System.out.println("Looking up the same range in the address index...");
+			Set<String> indexHashes = new LinkedHashSet<>();
+			LookupResult lookup = AddressIndex.lookup(indexFolder, accounts, range.first(), range.last());
+			System.out.println(lookup.positions.size() + " candidate txs, " + lookup.uncoveredCount
+					+ " of them only because of calldata the index could not read");
+			FindTransactionsResult indexResult = web3Helper.findTransactionsFromIndex(lookup, range, accounts,
+					rpc.getBatchSize(), found -> indexHashes.add(found.hash.toLowerCase()));
+			Preconditions.checkState(!indexResult.partialResult, "Lookup did not finish!");
+
+			System.out.println();
+			System.out.println("Scan: " + scanHashes.size() + " txs, index: " + indexHashes.size() + " txs");
+			int mismatchCount = 0;
+			for (String hash : scanHashes) {
+				if (!indexHashes.contains(hash)) {
+					System.out.println("\tMissing from index: " + hash);
+					mismatchCount++;
+				}
+			}
+			for (String hash : indexHashes) {
+				if (!scanHashes.contains(hash)) {
+					System.out.println("\tNot found by scan: " + hash);
+					mismatchCount++;
+				}
+			}
+			System.out.println(mismatchCount == 0 ? "Same rows." : mismatchCount + " rows differ!");
+
+		} finally {
+			for (File file : indexFolder.listFiles()) {
+				file.delete();
+			}
+			indexFolder.delete();
+			web3.shutdown();
+		}
+	}
+}
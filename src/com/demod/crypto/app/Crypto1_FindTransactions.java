@@ -7,28 +7,38 @@ import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.web3j.protocol.Web3j;
 import org.web3j.protocol.core.DefaultBlockParameterName;
-import org.web3j.protocol.core.methods.response.EthBlock.Block;
 import org.web3j.protocol.core.methods.response.EthGetBalance;
-import org.web3j.protocol.core.methods.response.Transaction;
 import org.web3j.protocol.core.methods.response.Web3ClientVersion;
 
+import com.demod.crypto.evm.AddressIndex;
+import com.demod.crypto.evm.AddressIndex.LookupResult;
+import com.demod.crypto.evm.FoundTransaction;
 import com.demod.crypto.evm.RPC;
 import com.demod.crypto.evm.Web3Helper;
 import com.demod.crypto.evm.Web3Helper.FindTransactionsResult;
+import com.demod.crypto.explorer.ExplorerApiHelper;
 import com.demod.crypto.util.ConsoleArgs;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ContiguousSet;
 
 public class Crypto1_FindTransactions {
 
+	private static final String DISCOVERY_BLOCK_SCAN = "BlockScan";
+	private static final String DISCOVERY_EXPLORER_API = "ExplorerAPI";
+
 	private static JSONObject loadJson(File jsonFile) {
 		try {
 			return new JSONObject(Files.readString(jsonFile.toPath()));
@@ -44,6 +54,10 @@ public class Crypto1_FindTransactions {
 	public static void main(String[] args) throws IOException {
 		int year = ConsoleArgs.argInt("Script1", "Tax Year", args, 0, LocalDate.now().getYear() - 1);
 		RPC rpc = RPC.byName(ConsoleArgs.argStringChoice("Script1", "RPC", args, 1, "Ethereum", RPC.getNames()));
+		String discovery = ConsoleArgs.argStringChoice("Script1", "Discovery", args, 2, DISCOVERY_BLOCK_SCAN,
+				new String[] { DISCOVERY_BLOCK_SCAN, DISCOVERY_EXPLORER_API });
+		boolean buildAddressIndex = discovery.equals(DISCOVERY_BLOCK_SCAN)
+				&& ConsoleArgs.argBoolean("Script1", "Build Address Index", args, 3, false);
 
 		Web3j web3 = rpc.createWeb3();
 		Web3Helper web3Helper = new Web3Helper(web3, rpc);
@@ -91,6 +105,98 @@ public class Crypto1_FindTransactions {
 
 		System.out.println(yearRange + " " + yearRange.size());
 
+		// Account history from the explorer API, no block walk needed
+		if (discovery.equals(DISCOVERY_EXPLORER_API)) {
+			ExplorerApiHelper explorerApiHelper = new ExplorerApiHelper(rpc);
+			int addedCount = explorerApiHelper.findTransactions(folder, accounts, yearRange);
+			explorerApiHelper.shutdown();
+			System.out.println("Located " + addedCount + " new transactions from the explorer API.");
+			return;
+		}
+
+		File addressIndexFolder = AddressIndex.getFolder(rpc);
+
+		// Wallets added after the scan already started can be answered from the address index
+		{
+			Set<String> scannedWallets = new LinkedHashSet<>();
+			JSONArray scannedWalletsJson = json.optJSONArray("scanned-wallets");
+			if (scannedWalletsJson != null) {
+				for (int i = 0; i < scannedWalletsJson.length(); i++) {
+					scannedWallets.add(scannedWalletsJson.getString(i).toLowerCase());
+				}
+			} else {
+				accounts.forEach(a -> scannedWallets.add(a.toLowerCase()));
+			}
+			List<String> newWallets = accounts.stream().filter(a -> !scannedWallets.contains(a.toLowerCase()))
+					.collect(Collectors.toList());
+			List<String> searchedWallets = new ArrayList<>(accounts);
+
+			long lastProcessedBlock = json.optLong("lastProcessedBlock", -1);
+			if (!newWallets.isEmpty() && lastProcessedBlock != -1) {
+				System.out.println("New wallets since the last scan: " + newWallets);
+				if (AddressIndex.covers(addressIndexFolder, yearRange.first(), lastProcessedBlock)) {
+					System.out.println("Looking up new wallets in the address index...");
+					ContiguousSet<Long> searchedRange = Web3Helper.contiguousSet(yearRange.first(), lastProcessedBlock);
+					LookupResult lookup = AddressIndex.lookup(addressIndexFolder, newWallets, searchedRange.first(),
+							searchedRange.last());
+
+					// Calldata the index could not read makes every one of those txs a candidate
+					int candidateCount = lookup.positions.size();
+					System.out.println("The address index found " + candidateCount + " txs to fetch and check, "
+							+ lookup.uncoveredCount + " of them ("
+							+ (candidateCount == 0 ? 0 : lookup.uncoveredCount * 100L / candidateCount)
+							+ "%) only because of calldata it could not read.");
+					int batchSize = rpc.getBatchSize();
+					System.out.println("That is about " + (candidateCount / Math.max(1, batchSize / 2) + 1)
+							+ " batch requests, a scan of blocks " + searchedRange.first() + " to "
+							+ searchedRange.last() + " is about " + (searchedRange.size() / batchSize + 1) + ".");
+					boolean useIndex = ConsoleArgs.argBoolean("Script1", "Fetch Address Index Matches", args, 4, true);
+
+					File transactionsCsvFile = new File(folder, "transactions.csv");
+					Set<String> knownHashes = new HashSet<>();
+					if (transactionsCsvFile.exists()) {
+						Files.readAllLines(transactionsCsvFile.toPath()).forEach(h -> knownHashes.add(h.toLowerCase()));
+					}
+
+					int[] addedCount = { 0 };
+					FindTransactionsResult result;
+					try (PrintWriter pw = new PrintWriter(new FileOutputStream(transactionsCsvFile, true));
+							PrintWriter pwMeta = new PrintWriter(
+									new FileOutputStream(new File(folder, FoundTransaction.SIDECAR_FILE_NAME), true))) {
+						Consumer<FoundTransaction> foundConsumer = found -> {
+							if (knownHashes.add(found.hash.toLowerCase())) {
+								pw.println(found.hash);
+								found.writeSidecarLine(pwMeta);
+								addedCount[0]++;
+							}
+						};
+						if (useIndex) {
+							result = web3Helper.findTransactionsFromIndex(lookup, searchedRange, newWallets, batchSize,
+									foundConsumer);
+						} else {
+							System.out.println("Scanning blocks " + searchedRange.first() + " to "
+									+ searchedRange.last() + " for the new wallets instead...");
+							result = web3Helper.findTransactionsWithAccounts(searchedRange, newWallets, batchSize,
+									foundConsumer);
+						}
+					}
+					if (result.partialResult) {
+						// Searched again on the next run, rows already written are skipped then
+						System.out.println("WARNING! Search for the new wallets did not finish, run again to resume.");
+						searchedWallets.removeAll(newWallets);
+					}
+					System.out.println("Located " + addedCount[0] + " new transactions for the new wallets.");
+				} else {
+					System.out.println("WARNING! The address index does not cover blocks " + yearRange.first() + " to "
+							+ lastProcessedBlock + ", new wallets will only be searched from here on.");
+					System.out.println("Remove lastProcessedBlock from data.json to search the full year again.");
+				}
+			}
+
+			json.put("scanned-wallets", new JSONArray(searchedWallets));
+			saveJson(jsonFile, json);
+		}
+
 		{
 			ContiguousSet<Long> searchRange;
 			if (json.has("lastProcessedBlock")) {
@@ -120,8 +226,28 @@ public class Crypto1_FindTransactions {
 			forceStopThread.setDaemon(true);
 			forceStopThread.start();
 
-			FindTransactionsResult result = web3Helper.findTransactionsWithAccounts(searchRange, accounts,
-					rpc.getBatchSize());
+			AddressIndex addressIndex = null;
+			if (buildAddressIndex) {
+				addressIndex = new AddressIndex(addressIndexFolder, AddressIndex.Options.fromConfig(configJson));
+				web3Helper.setScanListener(addressIndex);
+			}
+
+			FindTransactionsResult result;
+			// Matches are written out as they are found, so the scan never holds onto them
+			try (PrintWriter pw = new PrintWriter(new FileOutputStream(new File(folder, "transactions.csv"), true));
+					PrintWriter pwMeta = new PrintWriter(
+							new FileOutputStream(new File(folder, FoundTransaction.SIDECAR_FILE_NAME), true))) {
+				result = web3Helper.findTransactionsWithAccounts(searchRange, accounts, rpc.getBatchSize(), found -> {
+					pw.println(found.hash);
+					pw.flush();
+					found.writeSidecarLine(pwMeta);
+					pwMeta.flush();
+				});
+			}
+
+			if (addressIndex != null) {
+				addressIndex.flush();
+			}
 
 			if (result.lastProcessedBlock != -1) {
 				json.put("lastProcessedBlock", result.lastProcessedBlock);
@@ -137,16 +263,9 @@ public class Crypto1_FindTransactions {
 				System.out.println("Search complete!");
 			}
 
-			try (PrintWriter pw = new PrintWriter(new FileOutputStream(new File(folder, "transactions.csv"), true))) {
-				for (Entry<Block, Transaction> entry : result.foundTransactions) {
-					Transaction tx = entry.getValue();
-					pw.println(tx.getHash());
-				}
-			}
-
 			Files.writeString(jsonFile.toPath(), json.toString(2));
 
-			System.out.println("Located " + result.foundTransactions.size() + " transactions.");
+			System.out.println("Located " + result.foundCount + " transactions.");
 		}
 	}
 
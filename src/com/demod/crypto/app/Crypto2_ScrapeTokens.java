@@ -7,9 +7,12 @@ import java.math.BigInteger;
 import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -19,11 +22,15 @@ import org.web3j.protocol.core.methods.response.EthBlock.Block;
 import org.web3j.protocol.core.methods.response.Transaction;
 import org.web3j.protocol.core.methods.response.TransactionReceipt;
 
+import com.demod.crypto.evm.FoundTransaction;
+import com.demod.crypto.evm.InternalTransferTracer;
 import com.demod.crypto.evm.RPC;
 import com.demod.crypto.evm.Web3Helper;
 import com.demod.crypto.explorer.BlockExplorerHelper;
+import com.demod.crypto.explorer.ExplorerApiHelper;
 import com.demod.crypto.explorer.TokenTransfer;
 import com.demod.crypto.util.ConsoleArgs;
+import com.demod.crypto.util.Log;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.Uninterruptibles;
 
@@ -32,6 +39,8 @@ public class Crypto2_ScrapeTokens {
 	public static void main(String[] args) throws JSONException, IOException {
 		int year = ConsoleArgs.argInt("Script2", "Tax Year", args, 0, LocalDate.now().getYear() - 1);
 		RPC rpc = RPC.byName(ConsoleArgs.argStringChoice("Script2", "RPC", args, 1, "Ethereum", RPC.getNames()));
+		boolean traceInternalTransfers = ConsoleArgs.argBoolean("Script2", "Trace Internal Transfers", args, 2,
+				false);
 
 		Web3j web3 = rpc.createWeb3();
 		BlockExplorerHelper explorerHelper = new BlockExplorerHelper(rpc);
@@ -49,25 +58,54 @@ public class Crypto2_ScrapeTokens {
 		Preconditions.checkState(jsonFile.exists());
 
 		JSONObject json = new JSONObject(Files.readString(jsonFile.toPath()));
-		List<String> txHashes = Files.readAllLines(transactionsCsvFile.toPath());
+		// Script 1 writes as it scans, so a hard kill and resume can repeat a few hashes
+		List<String> txHashes = Files.readAllLines(transactionsCsvFile.toPath()).stream().distinct()
+				.collect(Collectors.toList());
+
+		Map<String, FoundTransaction> foundTransactions = FoundTransaction
+				.readSidecar(new File(folder, FoundTransaction.SIDECAR_FILE_NAME));
+		if (!foundTransactions.isEmpty()) {
+			System.out.println("Loaded " + foundTransactions.size() + " transactions from script 1 sidecar.");
+		}
+
+		// Token transfers already listed by the explorer API in script 1
+		File explorerTokenTransfersFile = new File(folder, ExplorerApiHelper.TOKEN_TRANSFERS_FILE_NAME);
+		JSONObject explorerTokenTransfersJson = explorerTokenTransfersFile.exists()
+				? new JSONObject(Files.readString(explorerTokenTransfersFile.toPath()))
+				: new JSONObject();
+		if (!explorerTokenTransfersJson.isEmpty()) {
+			System.out.println("Loaded token transfers for " + explorerTokenTransfersJson.length()
+					+ " transactions from the explorer API.");
+		}
+
+		// Internal native transfers from the RPC instead of the explorer
+		Map<String, List<TokenTransfer>> tracedTransfers = null;
+		if (traceInternalTransfers) {
+			System.out.println("Tracing internal transfers with " + rpc.getTraceMethod() + "...");
+			tracedTransfers = new InternalTransferTracer(rpc).traceInternalTransfers(txHashes);
+		}
 
 		DateTimeFormatter fmtDate = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 		JSONArray transactionsJson = new JSONArray();
 		for (int i = 0; i < txHashes.size(); i++) {
 			String txHash = txHashes.get(i);
-			System.out.println("(" + (i + 1) + "/" + txHashes.size() + ") " + txHash);
+			Log.debug("(" + (i + 1) + "/" + txHashes.size() + ") " + txHash);
+			Log.progress("Scraping transactions", i, txHashes.size());
 
 			// txHash =
 			// "0x868d764312553ecef95cfd4cc301d9864ea69abaa7178207d8a3e3634640bb17";// XXX
 
-			Transaction tx;
+			// Transactions found by script 1 only need the receipt
+			FoundTransaction tx = foundTransactions.get(txHash.toLowerCase());
 			TransactionReceipt receipt;
-			Block block;
 			while (true) {
 				try {
-					tx = web3.ethGetTransactionByHash(txHash).send().getTransaction().get();
+					if (tx == null) {
+						Transaction fetchTx = web3.ethGetTransactionByHash(txHash).send().getTransaction().get();
+						Block block = web3.ethGetBlockByHash(fetchTx.getBlockHash(), false).send().getBlock();
+						tx = FoundTransaction.of(block, fetchTx);
+					}
 					receipt = web3.ethGetTransactionReceipt(txHash).send().getTransactionReceipt().get();
-					block = web3.ethGetBlockByHash(tx.getBlockHash(), false).send().getBlock();
 					break;
 				} catch (IOException e) {
 					e.printStackTrace();
@@ -79,7 +117,14 @@ public class Crypto2_ScrapeTokens {
 			}
 
 			List<TokenTransfer> tokenTransfers = null;
-			while (true) {
+			JSONArray explorerTransfersJson = explorerTokenTransfersJson.optJSONArray(txHash.toLowerCase());
+			if (explorerTransfersJson != null) {
+				tokenTransfers = new ArrayList<>();
+				for (int j = 0; j < explorerTransfersJson.length(); j++) {
+					tokenTransfers.add(TokenTransfer.fromJson(explorerTransfersJson.getJSONObject(j)));
+				}
+			}
+			while (tokenTransfers == null) {
 				try {
 					tokenTransfers = explorerHelper.fetchTokenTransfers(txHash);
 					break;
@@ -90,55 +135,52 @@ public class Crypto2_ScrapeTokens {
 				}
 			}
 
+			if (tracedTransfers != null && tracedTransfers.containsKey(txHash)) {
+				// Replace the explorer's internal transfers with the traced ones
+				tokenTransfers.removeIf(
+						tt -> tt.tokenAddress == null && rpc.getCurrencySymbol().equals(tt.tokenSymbol));
+				tokenTransfers.addAll(tracedTransfers.get(txHash));
+			}
+
 			JSONObject txJson = new JSONObject();
 			terribleHackToHaveOrderedJSONObject(txJson);
 
-			txJson.put("hash", tx.getHash());
+			txJson.put("hash", tx.hash);
 			txJson.put("success", receipt.isStatusOK());
-			txJson.put("url", rpc.getExplorerUrl() + "tx/" + tx.getHash());
-			txJson.put("timestamp", fmtDate.format(Web3Helper.convertTimestamp(block.getTimestamp())));
-			txJson.put("from", tx.getFrom());
-			txJson.put("to", tx.getTo());
-			txJson.put("input", tx.getInput());
+			txJson.put("url", rpc.getExplorerUrl() + "tx/" + tx.hash);
+			txJson.put("timestamp", fmtDate.format(Web3Helper.convertTimestamp(BigInteger.valueOf(tx.timestamp))));
+			txJson.put("from", tx.from);
+			txJson.put("to", tx.to);
+			txJson.put("input", tx.input);
 			txJson.put("native-symbol", rpc.getCurrencySymbol());
-			txJson.put("value", rpc.nativeDecimal(tx.getValue()));
-			txJson.put("fee", rpc.nativeDecimal(tx.getGasPrice().multiply(receipt.getGasUsed())));
+			txJson.put("value", rpc.nativeDecimal(tx.value));
+			txJson.put("fee", rpc.nativeDecimal(tx.gasPrice.multiply(receipt.getGasUsed())));
 
-			if (!tx.getValue().equals(BigInteger.ZERO)) {
+			if (!tx.value.equals(BigInteger.ZERO)) {
 				TokenTransfer tt = new TokenTransfer();
-				tt.fromAddress = tx.getFrom();
-				tt.toAddress = tx.getTo();
-				tt.amount = rpc.nativeDecimal(tx.getValue());
+				tt.fromAddress = tx.from;
+				tt.toAddress = tx.to;
+				tt.amount = rpc.nativeDecimal(tx.value);
 				tt.tokenSymbol = rpc.getCurrencySymbol();
 				tokenTransfers.add(tt);
 			}
 
 			JSONArray tokenTransfersJson = new JSONArray();
 			for (TokenTransfer tokenTransfer : tokenTransfers) {
-				JSONObject tokenTransferJson = new JSONObject();
-				tokenTransferJson.put("from-address", tokenTransfer.fromAddress);
-				tokenTransferJson.put("from-address-alias", tokenTransfer.fromAddressAlias);
-				tokenTransferJson.put("to-address", tokenTransfer.toAddress);
-				tokenTransferJson.put("to-address-alias", tokenTransfer.toAddressAlias);
-				tokenTransferJson.put("amount", tokenTransfer.amount);
-				tokenTransferJson.put("amount-current-USD", tokenTransfer.amountCurrentUSD);
-				tokenTransferJson.put("token-symbol", tokenTransfer.tokenSymbol);
-				tokenTransferJson.put("token-name", tokenTransfer.tokenName);
-				tokenTransferJson.put("token-address", tokenTransfer.tokenAddress);
-
-				tokenTransfersJson.put(tokenTransferJson);
+				tokenTransfersJson.put(tokenTransfer.toJson());
 			}
 			txJson.put("token-transfers", tokenTransfersJson);
 
 			transactionsJson.put(txJson);
 
 			if (tokenTransfers.size() > 0) {
-				System.out.println("\t" + tokenTransfers.size() + " Token Transfers");
+				Log.debug("\t" + tokenTransfers.size() + " Token Transfers");
 			}
 
 //			System.out.println(txJson.toString(2));
 //			System.exit(0);
 		}
+		Log.progress("Scraping transactions", txHashes.size(), txHashes.size());
 		json.put("transactions", transactionsJson);
 
 		Files.writeString(jsonFile.toPath(), json.toString(2));
@@ -4,16 +4,26 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -22,15 +32,91 @@ import org.json.JSONObject;
 import com.demod.crypto.evm.RPC;
 import com.demod.crypto.util.CoinGeckoAPI;
 import com.demod.crypto.util.ConsoleArgs;
+import com.demod.crypto.util.DataJsonReader;
+import com.demod.crypto.util.Log;
+import com.demod.crypto.util.Log.Level;
+import com.demod.crypto.util.PriceChain;
+import com.demod.crypto.util.PricePlanner;
+import com.demod.crypto.util.SpamClassifier;
+import com.demod.crypto.util.TaxConfig;
 import com.demod.crypto.util.TokenTransferSum;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 public class Crypto3_IdentifyEvents {
 
+	// Everything one transaction adds to the output, so transactions can be identified in any order
+	private static class TxResult {
+		public static TxResult fromJson(JSONObject json) {
+			TxResult result = new TxResult();
+			result.skipped = json.getBoolean("skipped");
+			JSONArray linesJson = json.getJSONArray("lines");
+			for (int i = 0; i < linesJson.length(); i++) {
+				result.lines.add(linesJson.getString(i));
+			}
+			JSONObject tokenNetJson = json.getJSONObject("token-net");
+			for (String symbol : tokenNetJson.keySet()) {
+				result.tokenNet.put(symbol, new BigDecimal(tokenNetJson.getString(symbol)));
+			}
+			return result;
+		}
+
+		private final StringBuilder log = new StringBuilder();
+		private final List<String> lines = new ArrayList<>();
+		private final Map<String, BigDecimal> tokenNet = new HashMap<>();
+		private boolean skipped = false;
+		// False if a price was missing, those are worked out again next run in case the price turns up
+		private boolean complete = true;
+		private boolean cached = false;
+		private String fingerprint;
+
+		private void println(String str) {
+			if (LOG_DETAIL) {
+				log.append(str).append('\n');
+			}
+		}
+
+		public JSONObject toJson(String hash) {
+			JSONObject json = new JSONObject();
+			json.put("hash", hash);
+			json.put("fingerprint", fingerprint);
+			json.put("skipped", skipped);
+			json.put("lines", new JSONArray(lines));
+			JSONObject tokenNetJson = new JSONObject();
+			tokenNet.forEach((symbol, amount) -> tokenNetJson.put(symbol, amount.toPlainString()));
+			json.put("token-net", tokenNetJson);
+			return json;
+		}
+	}
+
+	// The per-transfer detail is only built when it will be written somewhere
+	private static final boolean LOG_DETAIL = Log.isEnabled(Level.DEBUG);
+
+	// Results from the last run, each one reused if its fingerprint has not changed
+	private static final String CACHE_FILE_NAME = "identify-cache.ndjson";
+	// Bump when identify changes what it writes, so old results are not reused
+	private static final int CACHE_VERSION = 1;
+
+	// Transactions are identified in batches, and written out in order after each batch
+	private static final int BATCH_SIZE = 1000;
+
+	// The only transaction fields read by this script, anything else in data.json is skipped while streaming
+	private static final Set<String> TX_FIELDS = ImmutableSet.of("hash", "success", "url", "timestamp", "from", "to",
+			"native-symbol", "fee", "token-transfers");
+
+	private static final DateTimeFormatter fmtDateJson = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final DateTimeFormatter fmtDateCsv = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss");
+
 	public static void main(String[] args) throws JSONException, IOException {
 		int year = ConsoleArgs.argInt("Script3", "Tax Year", args, 0, LocalDate.now().getYear() - 1);
 		RPC rpc = RPC.byName(ConsoleArgs.argStringChoice("Script3", "RPC", args, 1, "Ethereum", RPC.getNames()));
+		String currency = ConsoleArgs.argStringChoice("Script3", "Reporting Currency", args, 2,
+				CoinGeckoAPI.DEFAULT_CURRENCY, CoinGeckoAPI.CURRENCIES).toLowerCase();
+		boolean parallel = ConsoleArgs.argBoolean("Script3", "Parallel", args, 3, false);
 
 		System.out.println("RPC: " + rpc.getName() + " -- " + rpc.getRpcUrl());
 		System.out.println("\n-----\n");
@@ -38,211 +124,387 @@ public class Crypto3_IdentifyEvents {
 		File folder = new File("reports/" + year + "/" + rpc.getName());
 		Preconditions.checkState(folder.exists());
 
-		File configFile = new File("data/config.json");
-		Preconditions.checkState(configFile.exists());
-		JSONObject configJson = new JSONObject(Files.readString(configFile.toPath()));
+		TaxConfig config = TaxConfig.load(new File("data/config.json"));
+		JSONObject configJson = config.getJson();
 
 		File jsonFile = new File(folder, "data.json");
 		Preconditions.checkState(jsonFile.exists());
-		JSONObject json = new JSONObject(Files.readString(jsonFile.toPath()));
+		DataJsonReader transactions = new DataJsonReader(jsonFile, TX_FIELDS);
 
-		JSONObject walletsJson = configJson.getJSONObject("wallets");
-		System.out.println("Wallets: " + walletsJson.toString(2));
+		System.out.println("Wallets: " + configJson.getJSONObject("wallets").toString(2));
+		System.out.println("Stablecoins: " + configJson.getJSONObject("stablecoin-symbols").toString(2));
+		System.out.println("Exclude: " + configJson.getJSONObject("exclude-symbols").toString(2));
+		System.out.println("Rename: " + configJson.getJSONObject("rename-symbols").toString(2));
 
-		for (String key : ImmutableList.copyOf(walletsJson.keySet())) {
-			walletsJson.put(key.toLowerCase(), walletsJson.getString(key));
-		}
+		PriceChain prices = PriceChain.createDefault(currency);
 
-		JSONObject stableCoinSymbolsJson = configJson.getJSONObject("stablecoin-symbols");
-		System.out.println("Stablecoins: " + stableCoinSymbolsJson.toString(2));
+		SpamClassifier spamClassifier = new SpamClassifier(new File("data/spam-tokens.json"), rpc.getName());
+		spamClassifier.classify(transactions, config, prices);
 
-		JSONObject excludeSymbolsJson = configJson.getJSONObject("exclude-symbols");
-		System.out.println("Exclude: " + excludeSymbolsJson.toString(2));
+		File cacheFile = new File(folder, CACHE_FILE_NAME);
+		Crypto3_IdentifyEvents identifier = new Crypto3_IdentifyEvents(config, prices, spamClassifier,
+				readCache(cacheFile));
 
-		JSONObject renameSymbolsJson = configJson.getJSONObject("rename-symbols");
-		System.out.println("Rename: " + renameSymbolsJson.toString(2));
+		// Only transactions that need identifying again need prices
+		PricePlanner pricePlanner = new PricePlanner(prices, config);
+		pricePlanner.addTransactions(Iterables.filter(transactions, tx -> !identifier.isCached(tx)), spamClassifier);
+		pricePlanner.prefetch();
 
 		Map<String, BigDecimal> tokenNet = new HashMap<>();
 
-		DateTimeFormatter fmtDateJson = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-		DateTimeFormatter fmtDateCsv = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss");
+		ForkJoinPool pool = parallel ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+		if (parallel) {
+			System.out.println("Identifying events on " + pool.getParallelism() + " threads");
+		}
 
-		try (PrintWriter pw = new PrintWriter(new File(folder, year + "_" + rpc.getName() + "_taxevents.csv"))) {
+		File cacheTempFile = new File(folder, CACHE_FILE_NAME + ".tmp");
+		int cachedCount = 0;
+		try (PrintWriter pw = new PrintWriter(new File(folder, year + "_" + rpc.getName() + "_taxevents.csv"));
+				PrintWriter cachePw = new PrintWriter(cacheTempFile)) {
 			pw.println("Date,Account,Event,Asset,Amount,Value,TransactionID,Target,Url");
 
-			JSONArray transactionsJson = json.getJSONArray("transactions");
-			nextTx: for (int i = 0; i < transactionsJson.length(); i++) {
-				JSONObject txJson = transactionsJson.getJSONObject(i);
+			int count = transactions.size();
+			Iterator<JSONObject> iter = transactions.iterator();
+			for (int batchStart = 0; iter.hasNext(); batchStart += BATCH_SIZE) {
+				List<JSONObject> batch = new ArrayList<>();
+				while (iter.hasNext() && batch.size() < BATCH_SIZE) {
+					batch.add(iter.next());
+				}
+				int batchStart_f = batchStart;
+				IntStream indices = IntStream.range(0, batch.size());
+				List<TxResult> results;
+				if (parallel) {
+					results = pool.submit(() -> indices.parallel()
+							.mapToObj(i -> identifier.identifyOrReuse(batch.get(i), batchStart_f + i, count))
+							.collect(Collectors.toList())).join();
+				} else {
+					results = indices.mapToObj(i -> identifier.identifyOrReuse(batch.get(i), batchStart_f + i, count))
+							.collect(Collectors.toList());
+				}
 
-				if (!txJson.getBoolean("success")) {
-					continue;
+				for (int i = 0; i < results.size(); i++) {
+					TxResult result = results.get(i);
+					if (result.cached) {
+						cachedCount++;
+					}
+					if (result.complete) {
+						cachePw.println(result.toJson(batch.get(i).getString("hash")).toString());
+					}
+					if (result.log.length() > 0) {
+						Log.debug(result.log.toString());
+					}
+					result.tokenNet.forEach((k, v) -> tokenNet.merge(k, v, BigDecimal::add));
+					if (!result.skipped) {
+						result.lines.forEach(pw::println);
+						pw.println();
+					}
 				}
+				Log.progress("Identifying transactions", batchStart + batch.size(), count);
+			}
+		}
+		Files.move(cacheTempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("Reused " + cachedCount + " of " + transactions.size()
+				+ " transactions from the last run, identified " + (transactions.size() - cachedCount));
 
-				String hash = txJson.getString("hash");
-				String url = txJson.getString("url");
-				String txFromAddress = txJson.getString("from");
-				String txAddress = txJson.getString("to");
-				LocalDateTime timestamp = LocalDateTime.parse(txJson.getString("timestamp"), fmtDateJson);
-				LocalDate date = timestamp.toLocalDate();
+		if (pool != null) {
+			pool.shutdown();
+		}
 
-				JSONArray tokenTransfersJson = txJson.getJSONArray("token-transfers");
+		prices.printStats();
 
-				String walletAddress = null;
-				if (walletsJson.has(txFromAddress.toLowerCase())) {
-					walletAddress = txFromAddress;
-				}
+		System.out.println("Buy/Sell Net:");
+		tokenNet.entrySet().stream().sorted(Comparator.comparing(e -> e.getValue()))
+				.forEach(e -> System.out.println("\t" + e.getKey() + ": " + e.getValue().toPlainString()));
+	}
 
-				System.out.println("(" + (i + 1) + "/" + transactionsJson.length() + ") " + hash);// XXX
+	private static void putField(Hasher hasher, String str) {
+		hasher.putString(str, StandardCharsets.UTF_8);
+		hasher.putByte((byte) 0);
+	}
 
-				String txTarget = "";
-				Map<String, TokenTransferSum> tokenSums = new LinkedHashMap<>();
-				for (int j = 0; j < tokenTransfersJson.length(); j++) {
-					JSONObject ttJson = tokenTransfersJson.getJSONObject(j);
+	// Keys are sorted, so the same transaction always gives the same hash
+	private static void putJson(Hasher hasher, Object value) {
+		if (value instanceof JSONObject) {
+			JSONObject json = (JSONObject) value;
+			hasher.putByte((byte) '{');
+			for (String key : new TreeSet<>(json.keySet())) {
+				putField(hasher, key);
+				putJson(hasher, json.get(key));
+			}
+			hasher.putByte((byte) '}');
+		} else if (value instanceof JSONArray) {
+			JSONArray json = (JSONArray) value;
+			hasher.putByte((byte) '[');
+			for (int i = 0; i < json.length(); i++) {
+				putJson(hasher, json.get(i));
+			}
+			hasher.putByte((byte) ']');
+		} else {
+			putField(hasher, String.valueOf(value));
+		}
+	}
 
-					String ttSymbol = ttJson.getString("token-symbol");
-					ttSymbol = renameSymbolsJson.optString(ttSymbol, ttSymbol);
-					boolean ttIsStableCoin = stableCoinSymbolsJson.optBoolean(ttSymbol);
-					BigDecimal ttAmount = ttJson.getBigDecimal("amount");
+	private static Map<String, JSONObject> readCache(File file) throws IOException {
+		Map<String, JSONObject> ret = new HashMap<>();
+		if (!file.exists()) {
+			return ret;
+		}
+		for (String line : Files.readAllLines(file.toPath())) {
+			if (line.isBlank()) {
+				continue;
+			}
+			try {
+				JSONObject json = new JSONObject(line);
+				ret.put(json.getString("hash"), json);
+			} catch (JSONException e) {
+				System.err.println("Skipping bad cache line: " + e.getMessage());
+			}
+		}
+		return ret;
+	}
 
-					String fromAddress = ttJson.getString("from-address");
-					String fromAddressAlias = ttJson.optString("from-address-alias", fromAddress);
-					boolean fromMyWallet = walletsJson.has(fromAddress.toLowerCase());
+	private final TaxConfig config;
+	private final PriceChain prices;
+	private final SpamClassifier spamClassifier;
+	private final Map<String, JSONObject> cache;
+	private final String priceVersion;
+	// Worked out once while planning prices, then taken back out as each transaction is identified
+	private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+	// All of these are only read, so identify can be called from many threads
+	private Crypto3_IdentifyEvents(TaxConfig config, PriceChain prices, SpamClassifier spamClassifier,
+			Map<String, JSONObject> cache) {
+		this.config = config;
+		this.prices = prices;
+		this.spamClassifier = spamClassifier;
+		this.cache = cache;
+		priceVersion = CACHE_VERSION + "|" + prices.getVersion();
+	}
 
-					String toAddress = ttJson.getString("to-address");
-					String toAddressAlias = ttJson.optString("to-address-alias", toAddress);
-					boolean toMyWallet = walletsJson.has(toAddress.toLowerCase());
+	// The transaction, plus everything from the config and price sources that identify looks at for it
+	private String fingerprint(JSONObject txJson) {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		putField(hasher, priceVersion);
+		putJson(hasher, txJson);
+		putField(hasher, String.valueOf(config.getAccount(txJson.getString("from").toLowerCase())));
+		JSONArray tokenTransfersJson = txJson.getJSONArray("token-transfers");
+		for (int j = 0; j < tokenTransfersJson.length(); j++) {
+			JSONObject ttJson = tokenTransfersJson.getJSONObject(j);
+			String ttSymbol = config.rename(ttJson.getString("token-symbol"));
+			putField(hasher, ttSymbol);
+			hasher.putBoolean(spamClassifier.isSpam(ttJson));
+			hasher.putBoolean(config.isStablecoin(ttSymbol));
+			hasher.putBoolean(config.isExcluded(ttSymbol));
+			putField(hasher, String.valueOf(config.getAccount(ttJson.getString("from-address").toLowerCase())));
+			putField(hasher, String.valueOf(config.getAccount(ttJson.getString("to-address").toLowerCase())));
+		}
+		return hasher.hash().toString();
+	}
 
-					System.out.println("\t\t" + ttAmount.toPlainString() + " " + ttSymbol + "(" + ttIsStableCoin
-							+ ") \t" + fromAddressAlias + "(" + fromMyWallet + ") ==> " + toAddressAlias + "("
-							+ toMyWallet + ")");// XXX
+	private TxResult identifyOrReuse(JSONObject txJson, int i, int count) {
+		String fingerprint = fingerprints.remove(txJson.getString("hash"));
+		if (fingerprint == null) {
+			fingerprint = fingerprint(txJson);
+		}
+		JSONObject cachedJson = cache.get(txJson.getString("hash"));
+		TxResult result;
+		if (cachedJson != null && cachedJson.getString("fingerprint").equals(fingerprint)) {
+			result = TxResult.fromJson(cachedJson);
+			result.cached = true;
+			result.println("(" + (i + 1) + "/" + count + ") " + txJson.getString("hash") + " (cached)");
+		} else {
+			result = identify(txJson, i, count);
+		}
+		result.fingerprint = fingerprint;
+		return result;
+	}
 
-					// XXX probably should consider a better way of handling these
-					if (excludeSymbolsJson.optBoolean(ttSymbol)) {
-						continue nextTx;// Excluded by blacklist
-					}
+	private boolean isCached(JSONObject txJson) {
+		String fingerprint = fingerprint(txJson);
+		fingerprints.put(txJson.getString("hash"), fingerprint);
+		JSONObject cachedJson = cache.get(txJson.getString("hash"));
+		return cachedJson != null && cachedJson.getString("fingerprint").equals(fingerprint);
+	}
 
-					if (fromAddress.equalsIgnoreCase(txAddress)) {
-						txTarget = fromAddressAlias;
-					}
-					if (toAddress.equalsIgnoreCase(txAddress)) {
-						txTarget = toAddressAlias;
-					}
+	private TxResult identify(JSONObject txJson, int i, int count) {
+		TxResult result = new TxResult();
+		Map<String, BigDecimal> tokenNet = result.tokenNet;
 
-					if (fromMyWallet) {// Outgoing
-						if (walletAddress == null) {
-							walletAddress = toAddress;
-						}
-						tokenNet.put(ttSymbol, tokenNet.getOrDefault(ttSymbol, BigDecimal.ZERO).subtract(ttAmount));
-						TokenTransferSum tts = tokenSums.get(ttSymbol);
-						if (tts == null) {
-							tokenSums.put(ttSymbol, tts = new TokenTransferSum(date, ttIsStableCoin, ttSymbol));
-						}
-						tts.amountOut(ttAmount);
-					}
+		if (!txJson.getBoolean("success")) {
+			result.skipped = true;
+			return result;
+		}
 
-					if (toMyWallet) {// Incoming
-						if (walletAddress == null) {
-							walletAddress = toAddress;
-						}
-						tokenNet.put(ttSymbol, tokenNet.getOrDefault(ttSymbol, BigDecimal.ZERO).add(ttAmount));
-						TokenTransferSum tts = tokenSums.get(ttSymbol);
-						if (tts == null) {
-							tokenSums.put(ttSymbol, tts = new TokenTransferSum(date, ttIsStableCoin, ttSymbol));
-						}
-						tts.amountIn(ttAmount);
-					}
+		String hash = txJson.getString("hash");
+		String url = txJson.getString("url");
+		String txFromAddress = txJson.getString("from");
+		String txAddress = txJson.getString("to");
+		LocalDateTime timestamp = LocalDateTime.parse(txJson.getString("timestamp"), fmtDateJson);
+		LocalDate date = timestamp.toLocalDate();
 
-				}
+		JSONArray tokenTransfersJson = txJson.getJSONArray("token-transfers");
 
-				// Remove any that have cancelled out to zero amount
-				for (Entry<String, TokenTransferSum> entry : ImmutableList.copyOf(tokenSums.entrySet())) {
-					TokenTransferSum tts = entry.getValue();
-					if (tts.isZero()) {
-						tokenSums.remove(entry.getKey());
-					}
-				}
+		String walletAddress = null;
+		if (config.isWallet(txFromAddress.toLowerCase())) {
+			walletAddress = txFromAddress;
+		}
 
-				String dateStrCsv = fmtDateCsv.format(timestamp);
-				String account;
-				if (walletAddress != null) {
-					account = walletsJson.optString(walletAddress.toLowerCase(), walletAddress);
-				} else {
-					account = "";
-				}
+		result.println("(" + (i + 1) + "/" + count + ") " + hash);// XXX
 
-				List<TokenTransferSum> tokenList = ImmutableList.copyOf(tokenSums.values());
-				if (tokenList.size() == 2 && TokenTransferSum.isBuySell(tokenList.get(0), tokenList.get(1))) {
-					TokenTransferSum tts1 = tokenList.get(0);
-					TokenTransferSum tts2 = tokenList.get(1);
-					TokenTransferSum stablecoin, asset;
-					if (tts1.isStablecoin()) {
-						stablecoin = tts1;
-						asset = tts2;
-					} else {
-						stablecoin = tts2;
-						asset = tts1;
-					}
-					String line = dateStrCsv + "," + account + "," + (asset.isIncoming() ? "BUY" : "SELL") + ","
-							+ asset.getSymbol() + "," + asset.getAmount().abs().toPlainString() + ","
-							+ stablecoin.getValue().get().toPlainString() + "," + hash + "," + txTarget + "," + url;
-					pw.println(line);
-					System.out.println("\t -- " + line);
-
-				} else if (tokenList.size() == 2 && TokenTransferSum.isSwap(tokenList.get(0), tokenList.get(1))) {
-					TokenTransferSum tts1 = tokenList.get(0);
-					TokenTransferSum tts2 = tokenList.get(1);
-					TokenTransferSum sellAsset, buyAsset;
-					if (tts1.isOutgoing()) {
-						sellAsset = tts1;
-						buyAsset = tts2;
-					} else {
-						sellAsset = tts2;
-						buyAsset = tts1;
-					}
-					TokenTransferSum.matchValue(tts1, tts2);
-					String line = dateStrCsv + "," + account + ",SELL," + sellAsset.getSymbol() + ","
-							+ sellAsset.getAmount().abs().toPlainString() + ","
-							+ sellAsset.getValue().get().toPlainString() + "," + hash + "," + txTarget + "," + url;
-					pw.println(line);
-					System.out.println("\t -- " + line);
-					line = dateStrCsv + "," + account + ",BUY," + buyAsset.getSymbol() + ","
-							+ buyAsset.getAmount().abs().toPlainString() + ","
-							+ buyAsset.getValue().get().toPlainString() + "," + hash + "," + txTarget + "," + url;
-					pw.println(line);
-					System.out.println("\t -- " + line);
+		String txTarget = "";
+		Map<String, TokenTransferSum> tokenSums = new LinkedHashMap<>();
+		int spamCount = 0;
+		for (int j = 0; j < tokenTransfersJson.length(); j++) {
+			JSONObject ttJson = tokenTransfersJson.getJSONObject(j);
 
-				} else {
-					for (TokenTransferSum asset : tokenList) {
-						String line = dateStrCsv + "," + account + "," + (asset.isIncoming() ? "DEPOSIT" : "WITHDRAW")
-								+ "," + asset.getSymbol() + "," + asset.getAmount().abs().toPlainString() + ","
-								+ asset.getValue().map(BigDecimal::toPlainString).orElse("") + "," + hash + ","
-								+ txTarget + "," + url;
-						pw.println(line);
-						System.out.println("\t -- " + line);
-					}
+			if (spamClassifier.isSpam(ttJson)) {
+				spamCount++;
+				continue;
+			}
+
+			String ttSymbol = ttJson.getString("token-symbol");
+			ttSymbol = config.rename(ttSymbol);
+			boolean ttIsStableCoin = config.isStablecoin(ttSymbol);
+			BigDecimal ttAmount = ttJson.getBigDecimal("amount");
+
+			String fromAddress = ttJson.getString("from-address");
+			String fromAddressAlias = ttJson.optString("from-address-alias", fromAddress);
+			boolean fromMyWallet = config.isWallet(fromAddress.toLowerCase());
+
+			String toAddress = ttJson.getString("to-address");
+			String toAddressAlias = ttJson.optString("to-address-alias", toAddress);
+			boolean toMyWallet = config.isWallet(toAddress.toLowerCase());
+
+			result.println("\t\t" + ttAmount.toPlainString() + " " + ttSymbol + "(" + ttIsStableCoin + ") \t"
+					+ fromAddressAlias + "(" + fromMyWallet + ") ==> " + toAddressAlias + "(" + toMyWallet + ")");// XXX
+
+			// XXX probably should consider a better way of handling these
+			if (config.isExcluded(ttSymbol)) {
+				result.skipped = true;
+				return result;// Excluded by blacklist
+			}
+
+			if (fromAddress.equalsIgnoreCase(txAddress)) {
+				txTarget = fromAddressAlias;
+			}
+			if (toAddress.equalsIgnoreCase(txAddress)) {
+				txTarget = toAddressAlias;
+			}
+
+			if (fromMyWallet) {// Outgoing
+				if (walletAddress == null) {
+					walletAddress = toAddress;
+				}
+				tokenNet.put(ttSymbol, tokenNet.getOrDefault(ttSymbol, BigDecimal.ZERO).subtract(ttAmount));
+				TokenTransferSum tts = tokenSums.get(ttSymbol);
+				if (tts == null) {
+					tokenSums.put(ttSymbol, tts = new TokenTransferSum(prices, date, ttIsStableCoin, ttSymbol));
 				}
+				tts.amountOut(ttAmount);
+			}
 
-				String feeAccount = walletsJson.optString(txJson.getString("from").toLowerCase(), null);
-				if (feeAccount != null) {
-					String feeSymbol = txJson.getString("native-symbol");
-					BigDecimal feeAmount = txJson.getBigDecimal("fee");
-					BigDecimal feeValue = CoinGeckoAPI.getHistoricalPrice(feeSymbol, timestamp.toLocalDate())
-							.multiply(feeAmount);
-
-					String line = dateStrCsv + "," + feeAccount + ",FEE," + feeSymbol + "," + feeAmount.toPlainString()
-							+ "," + feeValue.toPlainString() + "," + hash + "," + txTarget + "," + url;
-					pw.println(line);
-					System.out.println("\t -- " + line);
+			if (toMyWallet) {// Incoming
+				if (walletAddress == null) {
+					walletAddress = toAddress;
+				}
+				tokenNet.put(ttSymbol, tokenNet.getOrDefault(ttSymbol, BigDecimal.ZERO).add(ttAmount));
+				TokenTransferSum tts = tokenSums.get(ttSymbol);
+				if (tts == null) {
+					tokenSums.put(ttSymbol, tts = new TokenTransferSum(prices, date, ttIsStableCoin, ttSymbol));
 				}
+				tts.amountIn(ttAmount);
+			}
+
+		}
+
+		// Nothing but spam, and we did not pay a fee for it
+		if (spamCount > 0 && spamCount == tokenTransfersJson.length() && walletAddress == null) {
+			result.println("\t\tSpam only, skipped");
+			result.skipped = true;
+			return result;
+		}
+
+		// Remove any that have cancelled out to zero amount
+		for (Entry<String, TokenTransferSum> entry : ImmutableList.copyOf(tokenSums.entrySet())) {
+			TokenTransferSum tts = entry.getValue();
+			if (tts.isZero()) {
+				tokenSums.remove(entry.getKey());
+			} else if (!tts.hasPrice()) {
+				result.complete = false;
+			}
+		}
 
-				pw.println();
+		String dateStrCsv = fmtDateCsv.format(timestamp);
+		String account;
+		if (walletAddress != null) {
+			account = config.getAccount(walletAddress.toLowerCase());
+			if (account == null) {
+				account = walletAddress;
 			}
+		} else {
+			account = "";
+		}
 
+		List<String> lines = new ArrayList<>();
+		List<TokenTransferSum> tokenList = ImmutableList.copyOf(tokenSums.values());
+		if (tokenList.size() == 2 && TokenTransferSum.isBuySell(tokenList.get(0), tokenList.get(1))) {
+			TokenTransferSum tts1 = tokenList.get(0);
+			TokenTransferSum tts2 = tokenList.get(1);
+			TokenTransferSum stablecoin, asset;
+			if (tts1.isStablecoin()) {
+				stablecoin = tts1;
+				asset = tts2;
+			} else {
+				stablecoin = tts2;
+				asset = tts1;
+			}
+			lines.add(dateStrCsv + "," + account + "," + (asset.isIncoming() ? "BUY" : "SELL") + ","
+					+ asset.getSymbol() + "," + asset.getAmount().abs().toPlainString() + ","
+					+ stablecoin.getValue().get().toPlainString() + "," + hash + "," + txTarget + "," + url);
+
+		} else if (tokenList.size() == 2 && TokenTransferSum.isSwap(tokenList.get(0), tokenList.get(1))) {
+			TokenTransferSum tts1 = tokenList.get(0);
+			TokenTransferSum tts2 = tokenList.get(1);
+			TokenTransferSum sellAsset, buyAsset;
+			if (tts1.isOutgoing()) {
+				sellAsset = tts1;
+				buyAsset = tts2;
+			} else {
+				sellAsset = tts2;
+				buyAsset = tts1;
+			}
+			TokenTransferSum.matchValue(tts1, tts2);
+			lines.add(dateStrCsv + "," + account + ",SELL," + sellAsset.getSymbol() + ","
+					+ sellAsset.getAmount().abs().toPlainString() + "," + sellAsset.getValue().get().toPlainString()
+					+ "," + hash + "," + txTarget + "," + url);
+			lines.add(dateStrCsv + "," + account + ",BUY," + buyAsset.getSymbol() + ","
+					+ buyAsset.getAmount().abs().toPlainString() + "," + buyAsset.getValue().get().toPlainString()
+					+ "," + hash + "," + txTarget + "," + url);
+
+		} else {
+			for (TokenTransferSum asset : tokenList) {
+				lines.add(dateStrCsv + "," + account + "," + (asset.isIncoming() ? "DEPOSIT" : "WITHDRAW") + ","
+						+ asset.getSymbol() + "," + asset.getAmount().abs().toPlainString() + ","
+						+ asset.getValue().map(BigDecimal::toPlainString).orElse("") + "," + hash + "," + txTarget
+						+ "," + url);
+			}
 		}
 
-		System.out.println("Buy/Sell Net:");
-		tokenNet.entrySet().stream().sorted(Comparator.comparing(e -> e.getValue()))
-				.forEach(e -> System.out.println("\t" + e.getKey() + ": " + e.getValue().toPlainString()));
+		String feeAccount = config.getAccount(txJson.getString("from").toLowerCase());
+		if (feeAccount != null) {
+			String feeSymbol = txJson.getString("native-symbol");
+			BigDecimal feeAmount = txJson.getBigDecimal("fee");
+			BigDecimal feeValue = prices.getPrice(feeSymbol, timestamp.toLocalDate()).multiply(feeAmount);
+
+			lines.add(dateStrCsv + "," + feeAccount + ",FEE," + feeSymbol + "," + feeAmount.toPlainString() + ","
+					+ feeValue.toPlainString() + "," + hash + "," + txTarget + "," + url);
+		}
+
+		for (String line : lines) {
+			result.lines.add(line);
+			result.println("\t -- " + line);
+		}
+		return result;
 	}
 
 }
@@ -13,44 +13,159 @@ import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.BiConsumer;
+import java.util.Set;
 import java.util.stream.Collectors;
 
-import org.json.JSONObject;
-
+import com.demod.crypto.tax.LotEngine;
+import com.demod.crypto.tax.LotMath;
 import com.demod.crypto.tax.LotStrategy;
 import com.demod.crypto.tax.TaxEvent;
 import com.demod.crypto.tax.TaxEvent.TaxEventType;
 import com.demod.crypto.tax.TaxLot;
-import com.demod.crypto.tax.TaxLot.AccrualType;
 import com.demod.crypto.util.CoinGeckoAPI;
 import com.demod.crypto.util.ConsoleArgs;
+import com.demod.crypto.util.Log;
+import com.demod.crypto.util.PriceChain;
+import com.demod.crypto.util.PricePlanner;
+import com.demod.crypto.util.TaxConfig;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.google.common.base.VerifyException;
 
 public class Crypto4_GenerateTaxLog {
 
+	// A csv row before it is priced, value is null when the Value cell was blank
+	private static class ParsedRow {
+		private final LocalDateTime date;
+		private final String account;
+		private final TaxEventType type;
+		private final String asset;
+		private final String priceAsset;
+		private final BigDecimal amount;
+		private BigDecimal value;
+		private final String transactionId;
+		private final String originFile;
+		private final int originLineNumber;
+
+		public ParsedRow(LocalDateTime date, String account, TaxEventType type, String asset, String priceAsset,
+				BigDecimal amount, BigDecimal value, String transactionId, String originFile, int originLineNumber) {
+			this.date = date;
+			this.account = account;
+			this.type = type;
+			this.asset = asset;
+			this.priceAsset = priceAsset;
+			this.amount = amount;
+			this.value = value;
+			this.transactionId = transactionId;
+			this.originFile = originFile;
+			this.originLineNumber = originLineNumber;
+		}
+	}
+
 	private static final String[] EXPECTED_HEADERS = { "Date", "Account", "Event", "Asset", "Amount", "Value",
 			"TransactionID" };
 
 	private static final List<TaxEventType> SORT_TYPE_ORDER = Arrays.asList(new TaxEventType[] { TaxEventType.FEE,
 			TaxEventType.DEPOSIT, TaxEventType.SELL, TaxEventType.BUY, TaxEventType.REWARD, TaxEventType.WITHDRAW });
 
+	// Position in SORT_TYPE_ORDER by ordinal, types not in the list come first
+	private static final int[] SORT_TYPE_RANK = Arrays.stream(TaxEventType.values())
+			.mapToInt(t -> SORT_TYPE_ORDER.indexOf(t)).toArray();
+
 	private static final DateTimeFormatter FMT_DATE_CSV = DateTimeFormatter.ofPattern("M/d/yyyy H:mm:ss");
 	private static final DateTimeFormatter FMT_DATE_CSV2 = DateTimeFormatter.ofPattern("M/d/yyyy H:mm");
 
-	private static TaxLot createUnknownLot(TaxEvent event, BigDecimal amount) {
-		return new TaxLot(AccrualType.UNKNOWN,
-				new TaxEvent(event.getDateTime(), event.getAccount(), TaxEventType.UNKNOWN, event.getAsset(), amount,
-						BigDecimal.ZERO, event.getTransactionId(), event.getOriginFile(),
-						event.getOriginFileLineNumber()),
-				event.getDateTime(), amount, BigDecimal.ZERO);
+	// Events of the same transaction in the same file are moved to the earliest time, and same-typed events of the
+	// same asset are combined into one
+	// Combined events go after the rest, ordered by the file and line of their first event, so events that tie when
+	// sorted by time and type always come out in the same order
+	private static List<TaxEvent> combineTransactions(List<TaxEvent> allEvents) {
+		Map<String, Map<String, List<TaxEvent>>> transactionsByFile = new HashMap<>();
+		for (TaxEvent event : allEvents) {
+			Map<String, List<TaxEvent>> transactions = transactionsByFile.computeIfAbsent(event.getOriginFile(),
+					f -> new HashMap<>());
+			String transactionId = event.getTransactionId();
+			if (transactionId != null && !transactionId.isBlank()) {
+				transactions.computeIfAbsent(transactionId, t -> new ArrayList<>()).add(event);
+			}
+		}
+
+		Set<TaxEvent> combinedAway = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<TaxEvent> combinedEvents = new ArrayList<>();
+		for (Map<String, List<TaxEvent>> transactions : transactionsByFile.values()) {
+			for (Entry<String, List<TaxEvent>> entry : transactions.entrySet()) {
+				String transactionId = entry.getKey();
+				List<TaxEvent> events = entry.getValue();
+
+				// Set all to the earliest dateTime
+				LocalDateTime dateTime = events.get(0).getDateTime();
+				for (TaxEvent event : events) {
+					if (event.getDateTime().isBefore(dateTime)) {
+						dateTime = event.getDateTime();
+					}
+				}
+				for (TaxEvent event : events) {
+					if (Duration.between(dateTime, event.getDateTime()).getSeconds() >= 60 * 60) {
+						throw new VerifyException("DateTime too different! " + FMT_DATE_CSV.format(dateTime) + " \n"
+								+ events.stream().map(Object::toString).collect(Collectors.joining("\n")));
+					}
+					event.setDateTime(dateTime);
+				}
+
+				if (events.size() == 1) {
+					continue;
+				}
+
+				// Combine same-typed events within the same transaction, lines are in file order so the first is
+				// the earliest line
+				Map<TaxEventType, Map<String, List<TaxEvent>>> combineGroups = new EnumMap<>(TaxEventType.class);
+				for (TaxEvent event : events) {
+					combineGroups.computeIfAbsent(event.getType(), k -> new HashMap<>())
+							.computeIfAbsent(event.getAsset(), k -> new ArrayList<>()).add(event);
+				}
+				for (Map<String, List<TaxEvent>> assetGroups : combineGroups.values()) {
+					for (List<TaxEvent> combineEvents : assetGroups.values()) {
+						if (combineEvents.size() > 1) {
+							TaxEvent firstEvent = combineEvents.get(0);
+
+							BigDecimal amountSum = BigDecimal.ZERO;
+							BigDecimal valueSum = BigDecimal.ZERO;
+							for (TaxEvent event : combineEvents) {
+								amountSum = amountSum.add(event.getAmount());
+								valueSum = valueSum.add(event.getValue());
+							}
+
+							combinedAway.addAll(combineEvents);
+							combinedEvents.add(new TaxEvent(dateTime, firstEvent.getAccount(), firstEvent.getType(),
+									firstEvent.getAsset(), amountSum, valueSum, transactionId,
+									firstEvent.getOriginFile(), firstEvent.getOriginFileLineNumber()));
+						}
+					}
+				}
+			}
+		}
+
+		if (combinedEvents.isEmpty()) {
+			return allEvents;
+		}
+		combinedEvents.sort(Comparator.comparing(TaxEvent::getOriginFile)
+				.thenComparingInt(TaxEvent::getOriginFileLineNumber));
+		List<TaxEvent> ret = new ArrayList<>(allEvents.size() - combinedAway.size() + combinedEvents.size());
+		for (TaxEvent event : allEvents) {
+			if (!combinedAway.contains(event)) {
+				ret.add(event);
+			}
+		}
+		ret.addAll(combinedEvents);
+		return ret;
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -58,23 +173,23 @@ public class Crypto4_GenerateTaxLog {
 		LotStrategy lotStrategy = LotStrategy.valueOf(ConsoleArgs.argStringChoice("Script4", "Lot Strategy", args, 1,
 				"LGUT", Arrays.stream(LotStrategy.values()).map(e -> e.name()).sorted().toArray(String[]::new)));
 		boolean rewardAsIncome = ConsoleArgs.argBoolean("Script4", "Rewards As Income", args, 2, false);
+		String currency = ConsoleArgs.argStringChoice("Script4", "Reporting Currency", args, 3,
+				CoinGeckoAPI.DEFAULT_CURRENCY, CoinGeckoAPI.CURRENCIES).toLowerCase();
+		boolean fixedPoint = ConsoleArgs.argBoolean("Script4", "Fixed Point Math", args, 4, false);
 
 		File dataFolder = new File("data/" + year);
 		Preconditions.checkState(dataFolder.exists());
 
-		File configFile = new File("data/config.json");
-		Preconditions.checkState(configFile.exists());
-		JSONObject configJson = new JSONObject(Files.readString(configFile.toPath()));
+		TaxConfig config = TaxConfig.load(new File("data/config.json"));
 
-		JSONObject stableCoinSymbolsJson = configJson.getJSONObject("stablecoin-symbols");
-		JSONObject excludeSymbolsJson = configJson.getJSONObject("exclude-symbols");
-		JSONObject renameSymbolsJson = configJson.getJSONObject("rename-symbols");
+		PriceChain prices = PriceChain.createDefault(currency);
 
 		System.out.println("Loading Events for year " + year + "...");
 
-		List<TaxEvent> allEvents = new ArrayList<>();
+		List<ParsedRow> rows = new ArrayList<>();
+		List<ParsedRow> unpricedRows = new ArrayList<>();
 
-		// Load all events from all csv files
+		// Load all events from all csv files, prices for blank values are filled in afterwards
 		for (File file : dataFolder.listFiles()) {
 			if (file.getName().endsWith(".csv")) {
 				System.out.println("\t" + file.getName());
@@ -93,7 +208,7 @@ public class Crypto4_GenerateTaxLog {
 				int originLineNumber = 1;
 				for (String line : lines) {
 					originLineNumber++;
-					System.out.println("\t\t" + originFile + "(Line " + originLineNumber + "): " + line);
+					Log.debug("\t\t" + originFile + "(Line " + originLineNumber + "): " + line);
 					if (line.isBlank()) {
 						continue;
 					}
@@ -120,33 +235,28 @@ public class Crypto4_GenerateTaxLog {
 					TaxEventType type = TaxEventType.valueOf(cells[2].trim());
 					String asset = cells[3].trim();
 					BigDecimal amount = new BigDecimal(cells[4].trim().replace("\"", "").replace(",", ""));
-					BigDecimal value;
-					if (!cells[5].isBlank()) {
-//						System.out.println("DEBUG " + cells[5]);// XXX
-						value = new BigDecimal(cells[5].trim().replace("$", "").replace("\"", "").replace(",", ""));
-					} else {
-						BigDecimal price = CoinGeckoAPI.getHistoricalPrice(asset, date.toLocalDate());
-						if (price == null) {
-							value = BigDecimal.ZERO;
-						} else {
-							value = price.multiply(amount);
-						}
-					}
 					String transactionId = cells[6].trim();
 
 					if (amount.compareTo(BigDecimal.ZERO) == 0) {
 						continue;
 					}
 
-					asset = renameSymbolsJson.optString(asset, asset);
+					String priceAsset = asset;
+					asset = config.rename(asset);
 
-					if (stableCoinSymbolsJson.optBoolean(asset)) {
+					if (config.isStablecoin(asset)) {
 						continue;
 					}
-					if (excludeSymbolsJson.optBoolean(asset)) {
+					if (config.isExcluded(asset)) {
 						continue;
 					}
 
+					BigDecimal value = null;
+					if (!cells[5].isBlank()) {
+//						System.out.println("DEBUG " + cells[5]);// XXX
+						value = new BigDecimal(cells[5].trim().replace("$", "").replace("\"", "").replace(",", ""));
+					}
+
 					if (type == TaxEventType.CARRYOVER) {
 						Verify.verify(date.getYear() < year,
 								"Carryover event not before " + year + "! " + originFile + "#" + originLineNumber);
@@ -155,63 +265,50 @@ public class Crypto4_GenerateTaxLog {
 								"Event is not from " + year + "! " + originFile + "#" + originLineNumber);
 					}
 
-					allEvents.add(new TaxEvent(date, account, type, asset, amount, value, transactionId, originFile,
-							originLineNumber));
+					ParsedRow row = new ParsedRow(date, account, type, asset, priceAsset, amount, value, transactionId,
+							originFile, originLineNumber);
+					rows.add(row);
+					if (value == null) {
+						unpricedRows.add(row);
+					}
 				}
 			}
 		}
 
-		Map<String, List<TaxEvent>> eventsByFile = allEvents.stream()
-				.collect(Collectors.groupingBy(e -> e.getOriginFile()));
-
-		List<Entry<String, List<TaxEvent>>> transactionGroups = eventsByFile.values()
-				.stream().<Map.Entry<String, List<TaxEvent>>>flatMap(
-						l -> l.stream().filter(e -> e.getTransactionId() != null && !e.getTransactionId().isBlank())
-								.collect(Collectors.groupingBy(e -> e.getTransactionId())).entrySet().stream())
-				.collect(Collectors.toList());
-
-		for (Entry<String, List<TaxEvent>> entry : transactionGroups) {
-			String transactionId = entry.getKey();
-			List<TaxEvent> events = entry.getValue();
+		// Plan and fetch every missing price at once, then look them all up together
+		if (!unpricedRows.isEmpty()) {
+			System.out.println("Pricing " + unpricedRows.size() + " events without a value...");
+			PricePlanner pricePlanner = new PricePlanner(prices, config);
+			unpricedRows.forEach(r -> pricePlanner.add(r.priceAsset, r.date.toLocalDate()));
+			CoinGeckoAPI coinGecko = prices.getCoinGecko();
+			long requestsBefore = coinGecko != null ? coinGecko.getRequestCount() : 0;
+			pricePlanner.prefetch();
+
+			unpricedRows.parallelStream().forEach(r -> {
+				BigDecimal price = prices.getPrice(r.priceAsset, r.date.toLocalDate());
+				if (price == null) {
+					r.value = BigDecimal.ZERO;
+				} else {
+					r.value = price.multiply(r.amount);
+				}
+			});
+
+			long distinctCount = unpricedRows.stream().map(r -> r.priceAsset + " " + r.date.toLocalDate()).distinct()
+					.count();
+			long noPriceCount = unpricedRows.stream().filter(r -> r.value.signum() == 0).count();
+			long requestCount = coinGecko != null ? coinGecko.getRequestCount() - requestsBefore : 0;
+			System.out.println("\t" + unpricedRows.size() + " values filled from " + distinctCount + " prices, "
+					+ requestCount + " CoinGecko calls, " + noPriceCount + " without a price (valued at 0)");
+		}
 
-			// Set all to the earliest dateTime
-			LocalDateTime dateTime = events.stream().map(e -> e.getDateTime()).sorted().findFirst().get();
-			for (TaxEvent event : events) {
-				Verify.verify(Duration.between(dateTime, event.getDateTime()).getSeconds() < 60 * 60,
-						"DateTime too different! " + FMT_DATE_CSV.format(dateTime) + " \n"
-								+ events.stream().map(Object::toString).collect(Collectors.joining("\n")));
-				event.setDateTime(dateTime);
-			}
+		List<TaxEvent> allEvents = rows.stream()
+				.map(r -> new TaxEvent(r.date, r.account, r.type, r.asset, r.amount, r.value, r.transactionId,
+						r.originFile, r.originLineNumber))
+				.collect(Collectors.toCollection(ArrayList::new));
 
-			// Combine same-typed events within the same transaction
-			events.stream().collect(Collectors.groupingBy(e -> e.getType().name() + "-" + e.getAsset()))
-					.forEach((combineType, combineEvents) -> {
-						if (combineEvents.size() > 1) {
-							TaxEvent firstEvent = combineEvents.stream()
-									.sorted(Comparator.<TaxEvent, Integer>comparing(e -> e.getOriginFileLineNumber()))
-									.findFirst().get();
-							TaxEventType type = firstEvent.getType();
-							String account = firstEvent.getAccount();
-							String asset = firstEvent.getAsset();
-
-							Verify.verify(combineEvents.stream().map(e -> e.getAsset()).distinct().count() == 1);
-
-							BigDecimal amountSum = combineEvents.stream().map(e -> e.getAmount())
-									.reduce(BigDecimal.ZERO, BigDecimal::add);
-							BigDecimal valueSum = combineEvents.stream().map(e -> e.getValue()).reduce(BigDecimal.ZERO,
-									BigDecimal::add);
-							String originFile = firstEvent.getOriginFile();
-							int originFileLineNumber = firstEvent.getOriginFileLineNumber();
-
-							TaxEvent combinedEvent = new TaxEvent(dateTime, account, type, asset, amountSum, valueSum,
-									transactionId, originFile, originFileLineNumber);
-
-							allEvents.removeAll(combineEvents);
-							allEvents.add(combinedEvent);
-						}
-					});
+		prices.printStats();
 
-		}
+		allEvents = combineTransactions(allEvents);
 
 		// XXX Shift all buy/reward/deposit back one day, to accomodate for time zone
 		for (TaxEvent event : allEvents) {
@@ -228,170 +325,52 @@ public class Crypto4_GenerateTaxLog {
 
 		// Sort by datetime, and then by type order
 		allEvents.sort(Comparator.<TaxEvent, LocalDateTime>comparing(e -> e.getDateTime())
-				.thenComparingInt(e -> SORT_TYPE_ORDER.indexOf(e.getType())));
+				.thenComparingInt(e -> SORT_TYPE_RANK[e.getType().ordinal()]));
 
 		System.out.println("Events Loaded: " + allEvents.size());
 
 		System.out.println("\n-----------------------------\n");
 
-		ListMultimap<String, TaxLot> allLots = ArrayListMultimap.create();
-		ListMultimap<String, TaxLot> allSoldLots = ArrayListMultimap.create();
-		ListMultimap<String, TaxLot> allPendingLots = ArrayListMultimap.create();
-
 		File strategyFolder = new File("reports/" + year + "/taxes/" + lotStrategy.name());
 		strategyFolder.mkdirs();
 
-//		PrintWriter debug = new PrintWriter(new File(strategyFolder, "debug.txt"));// XXX
-
 		try (PrintWriter pw = new PrintWriter(new File(strategyFolder, year + "_" + lotStrategy.name() + "_log.csv"))) {
 			pw.println("Date,Type,Asset,Amount,Cost Basis,Proceeds,Buy ID,Sell ID,Account,TransactionID");
-
-			BiConsumer<PrintWriter, TaxLot> printDisposalRow = (pwc, l) -> {
-				Verify.verify(l.isDisposed());
-				pwc.println(FMT_DATE_CSV.format(l.getDisposeEvent().getDateTime()) + "," + l.getDisposeType().name()
-						+ "," + l.getBuyEvent().getAsset() + "," + l.getAmount().toPlainString() + ","
-						+ l.getCostBasis().setScale(2, RoundingMode.HALF_UP).toPlainString() + ","
-						+ l.getProceeds().setScale(2, RoundingMode.HALF_UP).toPlainString() + ","
-						+ l.getBuyEvent().getId() + "," + l.getDisposeEvent().getId() + ","
-						+ l.getDisposeEvent().getAccount() + "," + l.getDisposeEvent().getTransactionId());
-			};
-			BiConsumer<PrintWriter, TaxLot> printAccrualRow = (pwc, l) -> {
-				pwc.println(FMT_DATE_CSV.format(l.getBuyEvent().getDateTime()) + "," + l.getAccrualType().name() + ","
-						+ l.getBuyEvent().getAsset() + "," + l.getAmount().toPlainString() + ","
-						+ l.getCostBasis().setScale(2, RoundingMode.HALF_UP).toPlainString() + ",,"
-						+ l.getBuyEvent().getId() + ",," + l.getBuyEvent().getAccount() + ","
-						+ l.getBuyEvent().getTransactionId());
-			};
-
-			for (TaxEvent event : allEvents) {
-//				if (event.getAsset().equals("XLM")) {// XXX
-//					debug.println(event);
-//				}
-
-				List<TaxLot> pendingLots = allPendingLots.get(event.getAsset());
-
-				switch (event.getType()) {
-
-				// Approach with option #1: amount is removed, but cost basis remains the same
-				// https://koinly.io/blog/deducting-crypto-trading-transfer-fees/
-				// If this results in removing an entire lot that has a cost basis, consider it
-				// a total loss (sold for $0)
-				case REMOVED:
-				case FEE:
-					BigDecimal feeAmount = event.getAmount();
-					while (feeAmount.compareTo(BigDecimal.ZERO) > 0) {
-						TaxLot pickLot;
-						if (pendingLots.size() > 0) {
-							pickLot = lotStrategy.pickLot(pendingLots, event.getDateTime(), feeAmount, BigDecimal.ZERO);
-						} else {
-							pickLot = createUnknownLot(event, feeAmount);
-							allLots.put(event.getAsset(), pickLot);
-							printAccrualRow.accept(pw, pickLot);
-						}
-
-						if (feeAmount.compareTo(pickLot.getAmount()) < 0) {
-							pickLot = pickLot.split(feeAmount, BigDecimal.ZERO);
-							allLots.put(event.getAsset(), pickLot);
-						}
-
-						Verify.verify(pickLot.getAmount().compareTo(feeAmount) <= 0);
-
-						if (pickLot.getCostBasis().compareTo(BigDecimal.ZERO) > 0) {
-							pickLot.setSold(event, BigDecimal.ZERO);
-						} else {
-							pickLot.setRemoved(event);
-						}
-
-						allPendingLots.remove(event.getAsset(), pickLot);
-						allSoldLots.put(event.getAsset(), pickLot);
-						printDisposalRow.accept(pw, pickLot);
-
-						feeAmount = feeAmount.subtract(pickLot.getAmount());
-					}
-					break;
-
-				case SELL:
-					BigDecimal sellAmount = event.getAmount();
-					BigDecimal sellProceeds = event.getValue();
-					while (sellAmount.compareTo(BigDecimal.ZERO) > 0) {
-						TaxLot sellLot;
-						if (pendingLots.size() > 0) {
-							sellLot = lotStrategy.pickLot(pendingLots, event.getDateTime(), sellAmount, sellProceeds);
-						} else {
-							sellLot = createUnknownLot(event, sellAmount);
-							allLots.put(event.getAsset(), sellLot);
-							printAccrualRow.accept(pw, sellLot);
-						}
-
-						if (sellAmount.compareTo(sellLot.getAmount()) < 0) {
-							sellLot = sellLot.splitProportionally(sellAmount);
-							allLots.put(event.getAsset(), sellLot);
-						}
-
-						Verify.verify(sellLot.getAmount().compareTo(sellAmount) <= 0);
-
-						BigDecimal proceeds;
-						if (sellLot.getAmount().compareTo(sellAmount) < 0) {
-							proceeds = sellLot.getAmount().divide(sellAmount, 18, RoundingMode.HALF_UP)
-									.multiply(sellProceeds);
-						} else {
-							proceeds = sellProceeds;
-						}
-						sellProceeds = sellProceeds.subtract(proceeds);
-
-						sellLot.setSold(event, proceeds);
-						allPendingLots.remove(event.getAsset(), sellLot);
-						allSoldLots.put(event.getAsset(), sellLot);
-						printDisposalRow.accept(pw, sellLot);
-
-						sellAmount = sellAmount.subtract(sellLot.getAmount());
-					}
-					Verify.verify(sellProceeds.compareTo(BigDecimal.ZERO) == 0);
-					break;
-
-				case BUY:
-					TaxLot buyLot = new TaxLot(AccrualType.BUY, event, event.getDateTime(), event.getAmount(),
-							event.getValue());
-					allPendingLots.put(event.getAsset(), buyLot);
-					allLots.put(event.getAsset(), buyLot);
-					printAccrualRow.accept(pw, buyLot);
-					break;
-
-				case CARRYOVER:
-					TaxLot carryoverLot = new TaxLot(AccrualType.CARRYOVER, event, event.getDateTime(),
-							event.getAmount(), event.getValue());
-					allPendingLots.put(event.getAsset(), carryoverLot);
-					allLots.put(event.getAsset(), carryoverLot);
-					printAccrualRow.accept(pw, carryoverLot);
-					break;
-
-				case REWARD:
-					TaxLot rewardLot;
-					if (rewardAsIncome) {
-						rewardLot = new TaxLot(AccrualType.INCOME, event, event.getDateTime(), event.getAmount(),
-								event.getValue());
-					} else {
-						rewardLot = new TaxLot(AccrualType.BUY, event, event.getDateTime(), event.getAmount(),
-								BigDecimal.ZERO);
-					}
-					allPendingLots.put(event.getAsset(), rewardLot);
-					allLots.put(event.getAsset(), rewardLot);
-					printAccrualRow.accept(pw, rewardLot);
-					break;
-
-				case DEPOSIT:
-				case WITHDRAW:
-				case UNKNOWN:
-					// Ignored
-					continue;
-				}
+			if (fixedPoint) {
+				writeLots(pw, LotMath.FIXED, lotStrategy, rewardAsIncome, allEvents);
+			} else {
+				writeLots(pw, LotMath.BIG_DECIMAL, lotStrategy, rewardAsIncome, allEvents);
 			}
 		}
 
-//		debug.close();// XXX
+		Crypto5_VerifyTaxes.main(new String[] { Integer.toString(year), lotStrategy.name(), currency });
 
-		Crypto5_VerifyTaxes.main(new String[] { Integer.toString(year), lotStrategy.name() });
+	}
 
+	private static <N> void writeLots(PrintWriter pw, LotMath<N> math, LotStrategy lotStrategy,
+			boolean rewardAsIncome, List<TaxEvent> allEvents) {
+		LotEngine<N> engine = new LotEngine<>(math, lotStrategy, rewardAsIncome, new LotEngine.Listener<N>() {
+			@Override
+			public void accrued(TaxLot<N> l) {
+				pw.println(FMT_DATE_CSV.format(l.getBuyEvent().getDateTime()) + "," + l.getAccrualType().name() + ","
+						+ l.getBuyEvent().getAsset() + "," + math.toBigDecimal(l.getAmount()).toPlainString() + ","
+						+ math.toBigDecimal(l.getCostBasis()).setScale(2, RoundingMode.HALF_UP).toPlainString() + ",,"
+						+ l.getBuyEvent().getId() + ",," + l.getBuyEvent().getAccount() + ","
+						+ l.getBuyEvent().getTransactionId());
+			}
+
+			@Override
+			public void disposed(TaxLot<N> l) {
+				Verify.verify(l.isDisposed());
+				pw.println(FMT_DATE_CSV.format(l.getDisposeEvent().getDateTime()) + "," + l.getDisposeType().name()
+						+ "," + l.getBuyEvent().getAsset() + "," + math.toBigDecimal(l.getAmount()).toPlainString()
+						+ "," + math.toBigDecimal(l.getCostBasis()).setScale(2, RoundingMode.HALF_UP).toPlainString()
+						+ "," + math.toBigDecimal(l.getProceeds()).setScale(2, RoundingMode.HALF_UP).toPlainString()
+						+ "," + l.getBuyEvent().getId() + "," + l.getDisposeEvent().getId() + ","
+						+ l.getDisposeEvent().getAccount() + "," + l.getDisposeEvent().getTransactionId());
+			}
+		});
+		engine.process(allEvents);
 	}
 
 }
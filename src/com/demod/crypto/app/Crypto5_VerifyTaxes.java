@@ -24,6 +24,7 @@ import com.demod.crypto.tax.VerifyCarryover;
 import com.demod.crypto.tax.VerifyDisposal;
 import com.demod.crypto.util.CoinGeckoAPI;
 import com.demod.crypto.util.ConsoleArgs;
+import com.demod.crypto.util.Log;
 import com.google.common.base.Verify;
 
 public class Crypto5_VerifyTaxes {
@@ -34,6 +35,10 @@ public class Crypto5_VerifyTaxes {
 		int year = ConsoleArgs.argInt("Script5", "Tax Year", args, 0, LocalDate.now().getYear() - 1);
 		LotStrategy lotStrategy = LotStrategy.valueOf(ConsoleArgs.argStringChoice("Script5", "Lot Strategy", args, 1,
 				"LGUT", Arrays.stream(LotStrategy.values()).map(e -> e.name()).sorted().toArray(String[]::new)));
+		// Should match what script 4 was run with, only used for the totals
+		String currency = ConsoleArgs.argStringChoice("Script5", "Reporting Currency", args, 2,
+				CoinGeckoAPI.DEFAULT_CURRENCY, CoinGeckoAPI.CURRENCIES).toLowerCase();
+		String currencyPrefix = currency.equals(CoinGeckoAPI.DEFAULT_CURRENCY) ? "$" : currency.toUpperCase() + " ";
 
 		File strategyFolder = new File("reports/" + year + "/taxes/" + lotStrategy.name());
 		strategyFolder.mkdirs();
@@ -46,7 +51,7 @@ public class Crypto5_VerifyTaxes {
 		logLines.remove(0);// header
 		for (int i = 0; i < logLines.size(); i++) {
 			String line = logLines.get(i);
-			System.out.println("Line " + (i + 2) + ": " + line);
+			Log.debug("Line " + (i + 2) + ": " + line);
 
 			String[] cells = line.split(",");
 			for (int j = 0; j < cells.length; j++) {
@@ -109,7 +114,7 @@ public class Crypto5_VerifyTaxes {
 				Verify.verify(deductedAmount.compareTo(BigDecimal.ZERO) >= 0,
 						"Lot overdisposed amount by " + deductedAmount.negate().toPlainString());
 				Verify.verify(deductedCostBasis.compareTo(BigDecimal.ONE.negate()) >= 0,
-						"Lot overdisposed cost basis by $"
+						"Lot overdisposed cost basis by " + currencyPrefix
 								+ deductedCostBasis.negate().setScale(2, RoundingMode.HALF_UP).toPlainString());
 			}
 		}
@@ -292,13 +297,13 @@ public class Crypto5_VerifyTaxes {
 					+ longTermTotal.setScale(2, RoundingMode.HALF_UP).toPlainString());
 
 			System.out.println();
-			System.out.println(
-					lotStrategy.name() + " Income: $" + incomeTotal.setScale(2, RoundingMode.HALF_UP).toPlainString());
-			System.out.println(lotStrategy.name() + " Short Term: $"
+			System.out.println(lotStrategy.name() + " Income: " + currencyPrefix
+					+ incomeTotal.setScale(2, RoundingMode.HALF_UP).toPlainString());
+			System.out.println(lotStrategy.name() + " Short Term: " + currencyPrefix
 					+ shortTermTotal.setScale(2, RoundingMode.HALF_UP).toPlainString());
-			System.out.println(lotStrategy.name() + " Long Term: $"
+			System.out.println(lotStrategy.name() + " Long Term: " + currencyPrefix
 					+ longTermTotal.setScale(2, RoundingMode.HALF_UP).toPlainString());
-			System.out.println(lotStrategy.name() + " Net Profit: $"
+			System.out.println(lotStrategy.name() + " Net Profit: " + currencyPrefix
 					+ netProfitTotal.setScale(2, RoundingMode.HALF_UP).toPlainString());
 		}
 
@@ -383,11 +388,12 @@ public class Crypto5_VerifyTaxes {
 		System.out.println();
 		System.out.println("Tax log verified!");
 
-		if (!CoinGeckoAPI.failedSymbols.isEmpty()) {
+		CoinGeckoAPI coinGecko = CoinGeckoAPI.getDefaultIfLoaded();
+		if (coinGecko != null && !coinGecko.getFailedSymbols().isEmpty()) {
 			System.out.println();
 			System.out.println();
 			System.out.println("WARNING! CoinGecko failed to determine price history for the following tokens:");
-			CoinGeckoAPI.failedSymbols.forEach(s -> System.out.println("\t" + s));
+			coinGecko.getFailedSymbols().forEach(s -> System.out.println("\t" + s));
 			System.out.println();
 			System.out.println("Modify coingecko-symbol-pref.json to point CoinGecko in the right direction.");
 		}
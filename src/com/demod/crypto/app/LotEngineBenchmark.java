@@ -0,0 +1,159 @@
+package com.demod.crypto.app;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.demod.crypto.tax.LotEngine;
+import com.demod.crypto.tax.LotMath;
+import com.demod.crypto.tax.LotStrategy;
+import com.demod.crypto.tax.TaxEvent;
+import com.demod.crypto.tax.TaxEvent.TaxEventType;
+import com.demod.crypto.tax.TaxLot;
+import com.sun.management.ThreadMXBean;
+
+// Runs every lot strategy over made up events with both lot maths, no files or prices needed
+// Args: [event count] [seed]
+public class LotEngineBenchmark {
+
+	private static final String[] ASSETS = { "AAA", "BBB", "CCC", "DDD", "EEE" };
+	private static final int RUNS = 3;
+
+	private static final ThreadMXBean THREAD_BEAN = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	// Roughly what a busy account looks like, selling part of what is held, with fees and rewards between
+	private static List<TaxEvent> generateEvents(int count, long seed) {
+		Random rand = new Random(seed);
+		double[] prices = new double[ASSETS.length];
+		double[] held = new double[ASSETS.length];
+		for (int i = 0; i < prices.length; i++) {
+			prices[i] = 1 + rand.nextInt(1000);
+		}
+
+		List<TaxEvent> events = new ArrayList<>();
+		LocalDateTime dateTime = LocalDateTime.of(2020, 1, 1, 0, 0);
+		for (int i = 0; i < count; i++) {
+			dateTime = dateTime.plusSeconds(rand.nextInt(2 * 365 * 24 * 60 * 60 / count * 2 + 1));
+			int asset = rand.nextInt(ASSETS.length);
+			prices[asset] = Math.max(0.01, prices[asset] * (1 + rand.nextGaussian() * 0.02));
+
+			int roll = rand.nextInt(100);
+			TaxEventType type;
+			double amount;
+			if (roll < 35 && held[asset] > 0.001) {
+				type = TaxEventType.SELL;
+				amount = held[asset] * (0.05 + rand.nextDouble() * 0.5);
+			} else if (roll < 45 && held[asset] > 0.001) {
+				type = TaxEventType.FEE;
+				amount = held[asset] * rand.nextDouble() * 0.01;
+			} else if (roll < 60) {
+				type = TaxEventType.REWARD;
+				amount = rand.nextDouble();
+			} else {
+				type = TaxEventType.BUY;
+				amount = rand.nextDouble() * 10;
+			}
+
+			BigDecimal amountDecimal = BigDecimal.valueOf(amount).setScale(8, RoundingMode.DOWN);
+			if (amountDecimal.signum() <= 0) {
+				continue;
+			}
+			BigDecimal value = amountDecimal.multiply(BigDecimal.valueOf(prices[asset])).setScale(2,
+					RoundingMode.HALF_UP);
+			held[asset] += type == TaxEventType.SELL || type == TaxEventType.FEE ? -amountDecimal.doubleValue()
+					: amountDecimal.doubleValue();
+
+			events.add(new TaxEvent(dateTime, "Bench", type, ASSETS[asset], amountDecimal, value, "x" + i,
+					"bench.csv", i + 2));
+		}
+		return events;
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+		List<TaxEvent> events = generateEvents(count, seed);
+		System.out.println("Events: " + events.size() + " (seed " + seed + "), best of " + RUNS + " runs");
+		System.out.println();
+		System.out.println(String.format("%-6s %-12s %10s %14s", "Lots", "Math", "CPU ms", "Allocated MB"));
+
+		for (LotStrategy lotStrategy : LotStrategy.values()) {
+			long[] bigDecimalCost = measure(LotMath.BIG_DECIMAL, lotStrategy, events);
+			long[] fixedCost = measure(LotMath.FIXED, lotStrategy, events);
+			System.out.println(String.format("%-6s %-12s %10d %14d", lotStrategy.name(), "BigDecimal",
+					bigDecimalCost[0] / 1000000, bigDecimalCost[1] / 1000000));
+			System.out.println(String.format("%-6s %-12s %10d %14d", "", "Fixed128", fixedCost[0] / 1000000,
+					fixedCost[1] / 1000000));
+
+			List<String> bigDecimalRows = rows(LotMath.BIG_DECIMAL, lotStrategy, events);
+			List<String> fixedRows = rows(LotMath.FIXED, lotStrategy, events);
+			int mismatch = -1;
+			for (int i = 0; i < Math.max(bigDecimalRows.size(), fixedRows.size()); i++) {
+				if (i >= bigDecimalRows.size() || i >= fixedRows.size()
+						|| !bigDecimalRows.get(i).equals(fixedRows.get(i))) {
+					mismatch = i;
+					break;
+				}
+			}
+			if (mismatch == -1) {
+				System.out.println("\t" + bigDecimalRows.size() + " rounded rows identical");
+			} else {
+				System.out.println("\tRow " + (mismatch + 1) + " of " + bigDecimalRows.size() + " differs:");
+				System.out.println(
+						"\t\tBigDecimal " + (mismatch < bigDecimalRows.size() ? bigDecimalRows.get(mismatch) : "-"));
+				System.out.println("\t\tFixed128   " + (mismatch < fixedRows.size() ? fixedRows.get(mismatch) : "-"));
+			}
+		}
+	}
+
+	// Lowest CPU nanos and allocated bytes of the timed runs, after one to warm up
+	private static <N> long[] measure(LotMath<N> math, LotStrategy lotStrategy, List<TaxEvent> events) {
+		LotEngine.Listener<N> ignore = new LotEngine.Listener<N>() {
+			@Override
+			public void accrued(TaxLot<N> lot) {
+			}
+
+			@Override
+			public void disposed(TaxLot<N> lot) {
+			}
+		};
+		new LotEngine<>(math, lotStrategy, false, ignore).process(events);
+
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int i = 0; i < RUNS; i++) {
+			long cpuBefore = THREAD_BEAN.getCurrentThreadCpuTime();
+			long bytesBefore = THREAD_BEAN.getCurrentThreadAllocatedBytes();
+			new LotEngine<>(math, lotStrategy, false, ignore).process(events);
+			best[0] = Math.min(best[0], THREAD_BEAN.getCurrentThreadCpuTime() - cpuBefore);
+			best[1] = Math.min(best[1], THREAD_BEAN.getCurrentThreadAllocatedBytes() - bytesBefore);
+		}
+		return best;
+	}
+
+	// The numbers as the tax log rounds them
+	private static <N> List<String> rows(LotMath<N> math, LotStrategy lotStrategy, List<TaxEvent> events) {
+		List<String> rows = new ArrayList<>();
+		new LotEngine<>(math, lotStrategy, false, new LotEngine.Listener<N>() {
+			@Override
+			public void accrued(TaxLot<N> l) {
+				rows.add(l.getAccrualType().name() + "," + l.getBuyEvent().getId() + ","
+						+ math.toBigDecimal(l.getAmount()).stripTrailingZeros().toPlainString() + ","
+						+ math.toBigDecimal(l.getCostBasis()).setScale(2, RoundingMode.HALF_UP).toPlainString());
+			}
+
+			@Override
+			public void disposed(TaxLot<N> l) {
+				rows.add(l.getDisposeType().name() + "," + l.getBuyEvent().getId() + "," + l.getDisposeEvent().getId()
+						+ "," + math.toBigDecimal(l.getAmount()).stripTrailingZeros().toPlainString() + ","
+						+ math.toBigDecimal(l.getCostBasis()).setScale(2, RoundingMode.HALF_UP).toPlainString() + ","
+						+ math.toBigDecimal(l.getProceeds()).setScale(2, RoundingMode.HALF_UP).toPlainString());
+			}
+		}).process(events);
+		return rows;
+	}
+}
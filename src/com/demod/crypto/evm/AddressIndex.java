@@ -0,0 +1,471 @@
+package com.demod.crypto.evm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.web3j.protocol.core.methods.response.EthBlock.Block;
+import org.web3j.protocol.core.methods.response.Transaction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+// Inverted index of address -> (block, tx index), built while script 1 scans
+// Stored as gzipped segments in data/address-index/(chain)/(first)-(last).idx.gz
+public class AddressIndex implements Consumer<Block> {
+
+	public static class LookupResult {
+		// Txs that may involve the addresses, check them the same way the scan does
+		public final List<Position> positions = new ArrayList<>();
+		// Addresses the index cannot fully answer (sampled out, saturated, excluded or not indexed), scan for these
+		public final Set<String> incomplete = new LinkedHashSet<>();
+		// Positions only there because of calldata the index could not read, any address might be in them
+		public int uncoveredCount = 0;
+	}
+
+	public static class Options {
+		public boolean includeCalldata = true;
+		public Set<String> excludeAddresses = new LinkedHashSet<>();
+		public int maxPositionsPerAddress = 0;// 0 is unlimited
+		public int sampleModulus = 1;// Only index addresses with hash % modulus == 0
+		public int segmentBlocks = 10000;
+
+		public static Options fromConfig(JSONObject configJson) {
+			Options ret = new Options();
+			JSONObject json = configJson.optJSONObject("address-index");
+			if (json != null) {
+				ret.includeCalldata = json.optBoolean("include-calldata", ret.includeCalldata);
+				JSONArray excludeJson = json.optJSONArray("exclude-addresses");
+				if (excludeJson != null) {
+					for (int i = 0; i < excludeJson.length(); i++) {
+						ret.excludeAddresses.add(stripAddress(excludeJson.getString(i)));
+					}
+				}
+				ret.maxPositionsPerAddress = json.optInt("max-positions-per-address", ret.maxPositionsPerAddress);
+				ret.sampleModulus = Math.max(1, json.optInt("sample-modulus", ret.sampleModulus));
+				ret.segmentBlocks = Math.max(1, json.optInt("segment-blocks", ret.segmentBlocks));
+			}
+			return ret;
+		}
+	}
+
+	public static class Position {
+		public final long blockNumber;
+		public final int txIndex;
+
+		public Position(long blockNumber, int txIndex) {
+			this.blockNumber = blockNumber;
+			this.txIndex = txIndex;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Position)) {
+				return false;
+			}
+			Position other = (Position) obj;
+			return blockNumber == other.blockNumber && txIndex == other.txIndex;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(blockNumber) * 31 + txIndex;
+		}
+
+		@Override
+		public String toString() {
+			return blockNumber + ":" + txIndex;
+		}
+	}
+
+	// Varint encoded (block delta, tx index) pairs
+	private static class Postings {
+		private byte[] buf = new byte[8];
+		private int length = 0;
+		private int count = 0;
+		private long lastBlock;
+		private int lastTxIndex = -1;
+		private boolean saturated = false;
+
+		public void add(long blockNumber, int txIndex, int maxPositions) {
+			if (saturated || (blockNumber == lastBlock && txIndex == lastTxIndex)) {
+				return;
+			}
+			if (maxPositions > 0 && count >= maxPositions) {
+				saturated = true;
+				buf = null;
+				length = 0;
+				return;
+			}
+			if (buf.length - length < 20) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			length = writeVarint(buf, length, blockNumber - lastBlock);
+			length = writeVarint(buf, length, txIndex);
+			lastBlock = blockNumber;
+			lastTxIndex = txIndex;
+			count++;
+		}
+	}
+
+	private static final int MAGIC = 0x41444958;// ADIX
+	private static final int VERSION = 1;
+
+	private static final String FILE_SUFFIX = ".idx.gz";
+
+	// Only the range is needed to check coverage, so it lives in the file name
+	private static long[] parseSegmentRange(File file) {
+		String name = file.getName();
+		if (!name.endsWith(FILE_SUFFIX)) {
+			return null;
+		}
+		String[] split = name.substring(0, name.length() - FILE_SUFFIX.length()).split("-");
+		if (split.length != 2) {
+			return null;
+		}
+		try {
+			return new long[] { Long.parseLong(split[0]), Long.parseLong(split[1]) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public static File getFolder(RPC rpc) {
+		return new File("data/address-index/" + rpc.getName());
+	}
+
+	private static List<File> getSegmentFiles(File folder) {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return new ArrayList<>();
+		}
+		return Arrays.stream(files).filter(f -> parseSegmentRange(f) != null)
+				.sorted(Comparator.comparingLong(f -> parseSegmentRange(f)[0])).collect(Collectors.toList());
+	}
+
+	// Checks that segments cover every block in the range, without gaps
+	public static boolean covers(File folder, long firstBlock, long lastBlock) {
+		long next = firstBlock;
+		for (File file : getSegmentFiles(folder)) {
+			long[] range = parseSegmentRange(file);
+			if (range[0] > next) {
+				break;
+			}
+			next = Math.max(next, range[1] + 1);
+			if (next > lastBlock) {
+				return true;
+			}
+		}
+		return next > lastBlock;
+	}
+
+	private static boolean isSampled(String address, int sampleModulus) {
+		return sampleModulus <= 1 || (address.hashCode() & 0x7fffffff) % sampleModulus == 0;
+	}
+
+	// Number words are not indexed, and a run of zeros can line up with the padding of other words
+	// Otherwise a shifted match in ABI words would have to share 32 or more digits with another word
+	private static boolean isIndexable(String address) {
+		return !address.contains("00000000");
+	}
+
+	public static LookupResult lookup(File folder, Collection<String> addresses, long firstBlock, long lastBlock)
+			throws IOException {
+		Set<String> targets = addresses.stream().map(AddressIndex::stripAddress).collect(Collectors.toSet());
+		Map<String, String> originals = addresses.stream()
+				.collect(Collectors.toMap(AddressIndex::stripAddress, a -> a, (a, b) -> a));
+
+		LookupResult result = new LookupResult();
+		Set<Position> positions = new LinkedHashSet<>();
+		Set<Position> uncovered = new HashSet<>();
+		for (File file : getSegmentFiles(folder)) {
+			long[] range = parseSegmentRange(file);
+			if (range[1] < firstBlock || range[0] > lastBlock) {
+				continue;
+			}
+
+			try (DataInputStream dis = new DataInputStream(
+					new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+				Preconditions.checkState(dis.readInt() == MAGIC, "Not an address index file! " + file);
+				Preconditions.checkState(dis.readInt() == VERSION, "Unknown address index version! " + file);
+				long segmentFirst = dis.readLong();
+				dis.readLong();
+				boolean includeCalldata = dis.readBoolean();
+				int sampleModulus = dis.readInt();
+				dis.readInt();// Max positions
+
+				byte[] addressBytes = new byte[20];
+				Set<String> excluded = new HashSet<>();
+				int excludedCount = dis.readInt();
+				for (int i = 0; i < excludedCount; i++) {
+					dis.readFully(addressBytes);
+					excluded.add(toHex(addressBytes));
+				}
+
+				for (String target : targets) {
+					if (!isSampled(target, sampleModulus) || excluded.contains(target) || !includeCalldata
+							|| !isIndexable(target)) {
+						result.incomplete.add(originals.get(target));
+					}
+				}
+
+				int addressCount = dis.readInt();
+				for (int i = 0; i < addressCount; i++) {
+					dis.readFully(addressBytes);
+					boolean saturated = dis.readBoolean();
+					int count = (int) readVarint(dis);
+					String address = toHex(addressBytes);
+					boolean match = targets.contains(address);
+					if (match && saturated) {
+						result.incomplete.add(originals.get(address));
+					}
+					long blockNumber = segmentFirst;
+					for (int j = 0; j < count; j++) {
+						blockNumber += readVarint(dis);
+						int txIndex = (int) readVarint(dis);
+						if (match && blockNumber >= firstBlock && blockNumber <= lastBlock) {
+							positions.add(new Position(blockNumber, txIndex));
+						}
+					}
+				}
+
+				// Calldata the index could not break into address words, any target might be in there
+				int uncoveredCount = (int) readVarint(dis);
+				long blockNumber = segmentFirst;
+				for (int j = 0; j < uncoveredCount; j++) {
+					blockNumber += readVarint(dis);
+					int txIndex = (int) readVarint(dis);
+					if (blockNumber >= firstBlock && blockNumber <= lastBlock) {
+						uncovered.add(new Position(blockNumber, txIndex));
+					}
+				}
+			}
+		}
+
+		for (Position position : uncovered) {
+			if (positions.add(position)) {
+				result.uncoveredCount++;
+			}
+		}
+		result.positions.addAll(positions);
+		result.positions.sort(Comparator.<Position>comparingLong(p -> p.blockNumber).thenComparingInt(p -> p.txIndex));
+		return result;
+	}
+
+	private static long readVarint(DataInputStream dis) throws IOException {
+		long ret = 0;
+		int shift = 0;
+		while (true) {
+			int b = dis.read();
+			if (b == -1) {
+				throw new EOFException();
+			}
+			ret |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return ret;
+			}
+			shift += 7;
+		}
+	}
+
+	// Lowercase without "0x"
+	private static String stripAddress(String address) {
+		String ret = address.toLowerCase();
+		return ret.startsWith("0x") ? ret.substring(2) : ret;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static int writeVarint(byte[] buf, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[offset++] = (byte) value;
+		return offset;
+	}
+
+	private final File folder;
+	private final Options options;
+
+	private Map<String, Postings> postings = new HashMap<>();
+	private Postings uncoveredCalldata = null;
+	private long segmentFirstBlock = -1;
+	private long segmentLastBlock = -1;
+
+	public AddressIndex(File folder, Options options) {
+		this.folder = folder;
+		this.options = options;
+		folder.mkdirs();
+	}
+
+	@Override
+	public void accept(Block block) {
+		long blockNumber = block.getNumber().longValue();
+		if (segmentFirstBlock != -1 && blockNumber != segmentLastBlock + 1) {
+			flush();
+		}
+		if (segmentFirstBlock == -1) {
+			segmentFirstBlock = blockNumber;
+			uncoveredCalldata = new Postings();
+			uncoveredCalldata.lastBlock = segmentFirstBlock;
+		}
+
+		List<Transaction> transactions = Lists.transform(block.getTransactions(), tr -> (Transaction) tr.get());
+		for (int txIndex = 0; txIndex < transactions.size(); txIndex++) {
+			Transaction tx = transactions.get(txIndex);
+			index(tx.getFrom(), blockNumber, txIndex);
+			if (tx.getTo() != null) {
+				index(tx.getTo(), blockNumber, txIndex);
+			}
+			if (options.includeCalldata && !indexCalldata(tx.getInput(), blockNumber, txIndex)) {
+				uncoveredCalldata.add(blockNumber, txIndex, 0);
+			}
+		}
+		segmentLastBlock = blockNumber;
+
+		if (segmentLastBlock - segmentFirstBlock + 1 >= options.segmentBlocks) {
+			flush();
+		}
+	}
+
+	public void flush() {
+		if (segmentFirstBlock == -1) {
+			return;
+		}
+		File file = new File(folder, segmentFirstBlock + "-" + segmentLastBlock + FILE_SUFFIX);
+		File tempFile = new File(folder, file.getName() + ".tmp");
+		try (DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile), 1 << 16)))) {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(segmentFirstBlock);
+			dos.writeLong(segmentLastBlock);
+			dos.writeBoolean(options.includeCalldata);
+			dos.writeInt(options.sampleModulus);
+			dos.writeInt(options.maxPositionsPerAddress);
+			dos.writeInt(options.excludeAddresses.size());
+			for (String address : options.excludeAddresses) {
+				writeAddress(dos, address);
+			}
+
+			List<String> addresses = postings.keySet().stream().sorted().collect(Collectors.toList());
+			dos.writeInt(addresses.size());
+			byte[] varintBuf = new byte[10];
+			for (String address : addresses) {
+				Postings p = postings.get(address);
+				writeAddress(dos, address);
+				dos.writeBoolean(p.saturated);
+				int count = p.saturated ? 0 : p.count;
+				dos.write(varintBuf, 0, writeVarint(varintBuf, 0, count));
+				if (!p.saturated) {
+					dos.write(p.buf, 0, p.length);
+				}
+			}
+			dos.write(varintBuf, 0, writeVarint(varintBuf, 0, uncoveredCalldata.count));
+			dos.write(uncoveredCalldata.buf, 0, uncoveredCalldata.length);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Failed to save address index segment! " + file.getName());
+			tempFile.delete();
+			return;
+		}
+		file.delete();
+		Preconditions.checkState(tempFile.renameTo(file), "Could not rename " + tempFile);
+
+		System.out.println("Address index saved: " + file.getName() + " (" + postings.size() + " addresses, "
+				+ uncoveredCalldata.count + " txs with other calldata)");
+
+		postings = new HashMap<>();
+		uncoveredCalldata = null;
+		segmentFirstBlock = -1;
+		segmentLastBlock = -1;
+	}
+
+	private void index(String address, long blockNumber, int txIndex) {
+		if (address == null || address.length() != 42) {
+			return;
+		}
+		indexStripped(address.substring(2).toLowerCase(), blockNumber, txIndex);
+	}
+
+	// Looks for ABI encoded address words after the method selector
+	// Returns false if the calldata holds anything else (packed or nested data, hashes, large numbers), the scan
+	// can match an address anywhere in it, so lookups have to check those txs themselves
+	private boolean indexCalldata(String input, long blockNumber, int txIndex) {
+		if (input == null || input.length() <= 2 + 8) {
+			return true;
+		}
+		if ((input.length() - 2 - 8) % 64 != 0) {
+			return false;
+		}
+		boolean covered = true;
+		for (int wordStart = 2 + 8; wordStart + 64 <= input.length(); wordStart += 64) {
+			if (!isZeros(input, wordStart, wordStart + 24)) {
+				covered = false;// Upper 12 bytes must be zero
+				continue;
+			}
+			if (isZeros(input, wordStart + 24, wordStart + 32)) {
+				continue;// Most likely a plain number, not an address
+			}
+			indexStripped(input.substring(wordStart + 24, wordStart + 64).toLowerCase(), blockNumber, txIndex);
+		}
+		return covered;
+	}
+
+	private void indexStripped(String address, long blockNumber, int txIndex) {
+		if (!isSampled(address, options.sampleModulus) || options.excludeAddresses.contains(address)) {
+			return;
+		}
+		Postings p = postings.get(address);
+		if (p == null) {
+			postings.put(address, p = new Postings());
+			p.lastBlock = segmentFirstBlock;
+		}
+		p.add(blockNumber, txIndex, options.maxPositionsPerAddress);
+	}
+
+	private void writeAddress(DataOutputStream dos, String address) throws IOException {
+		for (int i = 0; i < 20; i++) {
+			dos.writeByte(Integer.parseInt(address.substring(i * 2, i * 2 + 2), 16));
+		}
+	}
+
+	private boolean isZeros(String hex, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (hex.charAt(i) != '0') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
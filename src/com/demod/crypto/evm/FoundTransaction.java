@@ -0,0 +1,99 @@
+package com.demod.crypto.evm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.web3j.protocol.core.methods.response.EthBlock.Block;
+import org.web3j.protocol.core.methods.response.Transaction;
+
+// Everything script 2 needs from the tx and block, so it only has to fetch the receipt
+public class FoundTransaction {
+	public static final String SIDECAR_FILE_NAME = "transactions-meta.ndjson";
+
+	public static FoundTransaction fromJson(JSONObject json) {
+		FoundTransaction ret = new FoundTransaction();
+		ret.hash = json.getString("hash");
+		ret.blockNumber = json.getLong("block");
+		ret.timestamp = json.getLong("timestamp");
+		ret.from = json.getString("from");
+		ret.to = json.optString("to", null);
+		ret.input = json.getString("input");
+		ret.value = new BigInteger(json.getString("value"));
+		ret.gasPrice = new BigInteger(json.getString("gas-price"));
+		return ret;
+	}
+
+	public static FoundTransaction of(Block block, Transaction tx) {
+		FoundTransaction ret = new FoundTransaction();
+		ret.hash = tx.getHash();
+		ret.blockNumber = block.getNumber().longValue();
+		ret.timestamp = block.getTimestamp().longValue();
+		ret.from = tx.getFrom();
+		ret.to = tx.getTo();
+		ret.input = tx.getInput();
+		ret.value = tx.getValue();
+		ret.gasPrice = tx.getGasPrice();
+		return ret;
+	}
+
+	// One json object per line, keyed by tx hash
+	public static Map<String, FoundTransaction> readSidecar(File file) throws IOException {
+		Map<String, FoundTransaction> ret = new LinkedHashMap<>();
+		if (!file.exists()) {
+			return ret;
+		}
+		for (String line : Files.readAllLines(file.toPath())) {
+			if (line.isBlank()) {
+				continue;
+			}
+			try {
+				FoundTransaction found = fromJson(new JSONObject(line));
+				ret.put(found.hash.toLowerCase(), found);
+			} catch (JSONException e) {
+				// Partially written line from a force stop, script 2 will fetch it instead
+				System.err.println("Skipping bad sidecar line: " + e.getMessage());
+			}
+		}
+		return ret;
+	}
+
+	public String hash;
+	public long blockNumber;
+	public long timestamp;
+	public String from;
+	public String to;
+	public String input;
+	public BigInteger value;
+
+	public BigInteger gasPrice;
+
+	public JSONObject toJson() {
+		JSONObject json = new JSONObject();
+		json.put("hash", hash);
+		json.put("block", blockNumber);
+		json.put("timestamp", timestamp);
+		json.put("from", from);
+		json.put("to", to == null ? JSONObject.NULL : to);
+		json.put("input", input);
+		json.put("value", value.toString());
+		json.put("gas-price", gasPrice.toString());
+		return json;
+	}
+
+	@Override
+	public String toString() {
+		return "FoundTransaction [hash=" + hash + ", blockNumber=" + blockNumber + ", timestamp=" + timestamp
+				+ ", from=" + from + ", to=" + to + ", value=" + value + ", gasPrice=" + gasPrice + "]";
+	}
+
+	public void writeSidecarLine(PrintWriter pw) {
+		pw.println(toJson().toString());
+	}
+}
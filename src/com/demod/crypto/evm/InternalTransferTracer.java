@@ -0,0 +1,262 @@
+package com.demod.crypto.evm;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import com.demod.crypto.explorer.TokenTransfer;
+import com.demod.crypto.util.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+// Native coin moved inside contract calls, which tx.getValue() does not show
+public class InternalTransferTracer {
+
+	public static enum TraceMethod {
+		DEBUG("debug_traceTransaction"), // Geth callTracer
+		TRACE("trace_transaction");// OpenEthereum/Erigon
+
+		private final String rpcMethod;
+
+		private TraceMethod(String rpcMethod) {
+			this.rpcMethod = rpcMethod;
+		}
+	}
+
+	public static class TraceResponse extends Response<Object> {
+	}
+
+	// A tx the node will not trace is tried on its own this many times, with a growing wait between
+	private static final int TX_ATTEMPTS = 4;
+
+	private static BigInteger parseHex(Object value) {
+		if (value == null) {
+			return BigInteger.ZERO;
+		}
+		String hex = value.toString();
+		if (hex.startsWith("0x")) {
+			hex = hex.substring(2);
+		}
+		return hex.isEmpty() ? BigInteger.ZERO : new BigInteger(hex, 16);
+	}
+
+	private final RPC rpc;
+	private final TraceMethod traceMethod;
+	private final int batchSize;
+	private final int concurrency;
+
+	private volatile Web3jService web3jService;
+
+	public InternalTransferTracer(RPC rpc) {
+		Preconditions.checkArgument(rpc.getTraceMethod() != null,
+				"Set trace-method in rpc.json to \"debug\" or \"trace\" for " + rpc.getName());
+		this.rpc = rpc;
+		this.traceMethod = TraceMethod.valueOf(rpc.getTraceMethod().toUpperCase());
+		this.batchSize = Math.max(1, rpc.getTraceBatchSize());
+		this.concurrency = Math.max(1, rpc.getTraceConcurrency());
+
+		web3jService = rpc.createWeb3Service();
+	}
+
+	private void addTransfer(List<TokenTransfer> transfers, Object from, Object to, Object value) {
+		BigInteger amount = parseHex(value);
+		if (amount.signum() == 0 || from == null || to == null) {
+			return;
+		}
+		TokenTransfer tt = new TokenTransfer();
+		tt.fromAddress = from.toString();
+		tt.toAddress = to.toString();
+		tt.amount = rpc.nativeDecimal(amount);
+		tt.tokenSymbol = rpc.getCurrencySymbol();
+		transfers.add(tt);
+	}
+
+	// Frames with an error were reverted along with everything under them
+	@SuppressWarnings("unchecked")
+	private void collectCallTracer(Map<String, Object> frame, int depth, List<TokenTransfer> transfers) {
+		if (frame.get("error") != null) {
+			return;
+		}
+		String type = String.valueOf(frame.get("type")).toUpperCase();
+		// Depth 0 is the tx value itself, DELEGATECALL and CALLCODE do not move coins to another address
+		if (depth > 0 && (type.equals("CALL") || type.equals("CREATE") || type.equals("CREATE2")
+				|| type.equals("SELFDESTRUCT"))) {
+			addTransfer(transfers, frame.get("from"), frame.get("to"), frame.get("value"));
+		}
+		List<Object> calls = (List<Object>) frame.get("calls");
+		if (calls != null) {
+			for (Object call : calls) {
+				collectCallTracer((Map<String, Object>) call, depth + 1, transfers);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void collectParityTraces(List<Object> traces, List<TokenTransfer> transfers) {
+		List<List<Object>> revertedAddresses = new ArrayList<>();
+		for (Object traceObj : traces) {
+			Map<String, Object> trace = (Map<String, Object>) traceObj;
+			List<Object> traceAddress = (List<Object>) trace.get("traceAddress");
+			if (trace.get("error") != null) {
+				revertedAddresses.add(traceAddress);
+				continue;
+			}
+			if (traceAddress == null || traceAddress.isEmpty()) {
+				continue;// The tx value itself
+			}
+			if (revertedAddresses.stream().anyMatch(r -> traceAddress.size() > r.size()
+					&& traceAddress.subList(0, r.size()).equals(r))) {
+				continue;
+			}
+
+			Map<String, Object> action = (Map<String, Object>) trace.get("action");
+			Map<String, Object> result = (Map<String, Object>) trace.get("result");
+			String type = String.valueOf(trace.get("type"));
+			switch (type) {
+			case "call":
+				if ("call".equals(action.get("callType"))) {
+					addTransfer(transfers, action.get("from"), action.get("to"), action.get("value"));
+				}
+				break;
+			case "create":
+				if (result != null) {
+					addTransfer(transfers, action.get("from"), result.get("address"), action.get("value"));
+				}
+				break;
+			case "suicide":
+				addTransfer(transfers, action.get("address"), action.get("refundAddress"), action.get("balance"));
+				break;
+			}
+		}
+	}
+
+	private Request<?, TraceResponse> createRequest(String txHash) {
+		List<Object> params;
+		if (traceMethod == TraceMethod.DEBUG) {
+			params = Arrays.asList(txHash, Collections.singletonMap("tracer", "callTracer"));
+		} else {
+			params = Arrays.asList(txHash);
+		}
+		return new Request<>(traceMethod.rpcMethod, params, web3jService, TraceResponse.class);
+	}
+
+	// Txs the node returned an error for are left out, with the error message in errors
+	@SuppressWarnings("unchecked")
+	private Map<String, List<TokenTransfer>> traceBatch(List<String> txHashes, Map<String, String> errors) {
+		while (true) {
+			try {
+				BatchRequest batchRequest = new BatchRequest(web3jService);
+				Map<Long, String> hashById = new HashMap<>();
+				for (String txHash : txHashes) {
+					Request<?, TraceResponse> request = createRequest(txHash);
+					hashById.put(request.getId(), txHash);
+					batchRequest.add(request);
+				}
+
+				BatchResponse batchResponse = batchRequest.send();
+
+				Map<String, List<TokenTransfer>> ret = new HashMap<>();
+				errors.clear();
+				for (Response<?> response : batchResponse.getResponses()) {
+					String txHash = hashById.get(response.getId());
+					Preconditions.checkState(txHash != null, "Unexpected trace response id " + response.getId());
+					if (response.hasError()) {
+						errors.put(txHash, response.getError().getMessage());
+						continue;
+					}
+
+					List<TokenTransfer> transfers = new ArrayList<>();
+					Object result = response.getResult();
+					if (traceMethod == TraceMethod.DEBUG) {
+						collectCallTracer((Map<String, Object>) result, 0, transfers);
+					} else {
+						collectParityTraces((List<Object>) result, transfers);
+					}
+					ret.put(txHash, transfers);
+				}
+				Preconditions.checkState(ret.size() + errors.size() == txHashes.size(), "Missing trace responses!");
+				return ret;
+
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Trying again in 15 seconds...");
+				Uninterruptibles.sleepUninterruptibly(15, TimeUnit.SECONDS);
+				web3jService = rpc.createWeb3Service();
+			}
+		}
+	}
+
+	// Failed txs are tried again one at a time, any still failing are left out of the result
+	private Map<String, List<TokenTransfer>> traceBatchWithRetries(List<String> txHashes) {
+		Map<String, String> errors = new HashMap<>();
+		Map<String, List<TokenTransfer>> ret = traceBatch(txHashes, errors);
+		for (Entry<String, String> entry : errors.entrySet()) {
+			String txHash = entry.getKey();
+			String error = entry.getValue();
+			Map<String, String> retryErrors = new HashMap<>();
+			for (int attempt = 1; attempt < TX_ATTEMPTS && error != null; attempt++) {
+				int waitSeconds = 5 << (attempt - 1);
+				System.out.println(traceMethod.rpcMethod + " failed for " + txHash + ": " + error);
+				System.out.println("Trying again in " + waitSeconds + " seconds...");
+				Uninterruptibles.sleepUninterruptibly(waitSeconds, TimeUnit.SECONDS);
+				ret.putAll(traceBatch(Arrays.asList(txHash), retryErrors));
+				error = retryErrors.get(txHash);
+			}
+			if (error != null) {
+				System.out.println("WARNING! Could not trace " + txHash
+						+ ", keeping the explorer's internal transfers for it: " + error);
+			}
+		}
+		return ret;
+	}
+
+	// Batches of traces, several batches in flight at once
+	// Txs that could not be traced are missing from the result
+	public Map<String, List<TokenTransfer>> traceInternalTransfers(List<String> txHashes) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+			List<List<String>> batches = Lists.partition(txHashes, batchSize);
+			AtomicInteger doneCount = new AtomicInteger();
+			List<Future<Map<String, List<TokenTransfer>>>> futures = new ArrayList<>();
+			for (List<String> batch : batches) {
+				futures.add(executor.submit(() -> {
+					Map<String, List<TokenTransfer>> result = traceBatchWithRetries(batch);
+					int done = doneCount.addAndGet(batch.size());
+					Log.progress("Traced transactions", done, txHashes.size());
+					return result;
+				}));
+			}
+
+			Map<String, List<TokenTransfer>> ret = new LinkedHashMap<>();
+			for (Future<Map<String, List<TokenTransfer>>> future : futures) {
+				ret.putAll(future.get());
+			}
+			return ret;
+
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
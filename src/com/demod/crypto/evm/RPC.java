@@ -54,7 +54,13 @@ public class RPC {
 						rpcJson.getString("currency-symbol"), //
 						rpcJson.getInt("currency-decimals"), //
 						rpcJson.getString("explorer-url"), //
-						rpcJson.getInt("batch-size")//
+						rpcJson.getInt("batch-size"), //
+						rpcJson.optString("explorer-api-url", null), //
+						rpcJson.optString("explorer-api-key", ""), //
+						rpcJson.optInt("explorer-api-rate", 5), //
+						rpcJson.optString("trace-method", null), //
+						rpcJson.optInt("trace-batch-size", 20), //
+						rpcJson.optInt("trace-concurrency", 4)//
 				));
 			}
 			rpcByName = map;
@@ -71,9 +77,16 @@ public class RPC {
 	private final int currencyDecimals;
 	private final String explorerUrl;
 	private final int batchSize;
+	private final String explorerApiUrl;
+	private final String explorerApiKey;
+	private final int explorerApiRate;
+	private final String traceMethod;
+	private final int traceBatchSize;
+	private final int traceConcurrency;
 
 	private RPC(String name, String rpcUrl, int chainId, String currencySymbol, int currencyDecimals,
-			String explorerUrl, int batchSize) {
+			String explorerUrl, int batchSize, String explorerApiUrl, String explorerApiKey, int explorerApiRate,
+			String traceMethod, int traceBatchSize, int traceConcurrency) {
 		this.name = name;
 		this.rpcUrl = rpcUrl;
 		this.chainId = chainId;
@@ -81,12 +94,21 @@ public class RPC {
 		this.currencyDecimals = currencyDecimals;
 		this.explorerUrl = explorerUrl;
 		this.batchSize = batchSize;
+		this.explorerApiUrl = explorerApiUrl;
+		this.explorerApiKey = explorerApiKey;
+		this.explorerApiRate = explorerApiRate;
+		this.traceMethod = traceMethod;
+		this.traceBatchSize = traceBatchSize;
+		this.traceConcurrency = traceConcurrency;
 	}
 
 	public Web3j createWeb3() {
-		HttpService web3jService = new HttpService(getRpcUrl(),
+		return Web3j.build(createWeb3Service());
+	}
+
+	public HttpService createWeb3Service() {
+		return new HttpService(getRpcUrl(),
 				HttpService.getOkHttpClientBuilder().readTimeout(120, TimeUnit.SECONDS).build());
-		return Web3j.build(web3jService);
 	}
 
 	public String fmtBalance(BigInteger balance) {
@@ -109,6 +131,20 @@ public class RPC {
 		return currencySymbol;
 	}
 
+	// Null if not set, use the default for the explorer
+	public String getExplorerApiUrl() {
+		return explorerApiUrl;
+	}
+
+	public String getExplorerApiKey() {
+		return explorerApiKey;
+	}
+
+	// Requests per second
+	public int getExplorerApiRate() {
+		return explorerApiRate;
+	}
+
 	public String getExplorerUrl() {
 		return explorerUrl;
 	}
@@ -121,6 +157,19 @@ public class RPC {
 		return rpcUrl;
 	}
 
+	public int getTraceBatchSize() {
+		return traceBatchSize;
+	}
+
+	public int getTraceConcurrency() {
+		return traceConcurrency;
+	}
+
+	// "debug" (debug_traceTransaction) or "trace" (trace_transaction), null if not supported
+	public String getTraceMethod() {
+		return traceMethod;
+	}
+
 	public BigDecimal nativeDecimal(BigInteger amountRaw) {
 		return new BigDecimal(amountRaw, currencyDecimals);
 	}
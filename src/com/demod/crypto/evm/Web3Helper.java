@@ -6,14 +6,17 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
@@ -21,11 +24,15 @@ import org.web3j.protocol.Web3j;
 import org.web3j.protocol.core.BatchRequest;
 import org.web3j.protocol.core.BatchResponse;
 import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.Response;
 import org.web3j.protocol.core.methods.response.EthBlock;
 import org.web3j.protocol.core.methods.response.EthBlock.Block;
+import org.web3j.protocol.core.methods.response.EthTransaction;
 import org.web3j.protocol.core.methods.response.Transaction;
 
+import com.demod.crypto.evm.AddressIndex.LookupResult;
 import com.demod.crypto.util.LazyWeakSparseImmutableList;
+import com.demod.crypto.util.Log;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
@@ -40,7 +47,7 @@ public class Web3Helper {
 	public static class FindTransactionsResult {
 		public boolean partialResult;
 		public Long lastProcessedBlock;
-		public List<Entry<Block, Transaction>> foundTransactions;
+		public int foundCount;
 	}
 
 	public static ContiguousSet<Long> contiguousSet(long first, long last) {
@@ -51,6 +58,27 @@ public class Web3Helper {
 		return LocalDateTime.ofInstant(Instant.ofEpochSecond(timestamp.longValue()), ZoneId.systemDefault());
 	}
 
+	// How the scan decides a tx belongs to the accounts, null if it does not
+	private static String matchAccounts(String from, String to, String input, Set<String> accountCheck,
+			List<String> inputCheck) {
+		if (accountCheck.contains(from.toLowerCase())) {
+			return "[FROM " + from.substring(0, 6) + "]";
+		}
+
+		if ((to != null) && accountCheck.contains(to.toLowerCase())) {
+			return "[TO " + to.substring(0, 6) + "]";
+		}
+
+		String inputLowercase = input.toLowerCase();
+		for (int i = 0; i < inputCheck.size(); i++) {
+			String check = inputCheck.get(i);
+			if (inputLowercase.contains(check)) {
+				return "[INPUT 0x" + check.substring(0, 4) + "]";
+			}
+		}
+		return null;
+	}
+
 	private final RPC rpc;
 
 	private Web3j web3;
@@ -64,6 +92,8 @@ public class Web3Helper {
 
 	private volatile boolean forceStop = false;
 
+	private Consumer<Block> scanListener = null;
+
 	public Web3Helper(Web3j web3, RPC rpc) {
 		this.web3 = web3;
 		this.rpc = rpc;
@@ -108,8 +138,9 @@ public class Web3Helper {
 	}
 
 	// Can be force stopped
+	// Matches are handed to foundConsumer as they are found, nothing is retained
 	public FindTransactionsResult findTransactionsWithAccounts(ContiguousSet<Long> blockRange, List<String> accounts,
-			int batchSize) throws IOException {
+			int batchSize, Consumer<FoundTransaction> foundConsumer) throws IOException {
 
 		Set<String> accountCheck = accounts.stream().map(s -> s.toLowerCase()).collect(Collectors.toSet());
 		// Strip "0x"
@@ -118,7 +149,6 @@ public class Web3Helper {
 //		List<Block> blocks = getBlockListBatched(blockRange, true, batchSize);
 
 		FindTransactionsResult result = new FindTransactionsResult();
-		result.foundTransactions = new ArrayList<>();
 		long lastProcessedBlock = -1;
 
 		long blockStart = blockRange.first();
@@ -146,34 +176,22 @@ public class Web3Helper {
 					sampleCount = 0;
 				}
 
-				nextTx: for (Transaction tx : Lists.transform(block.getTransactions(), tr -> (Transaction) tr.get())) {
+				for (Transaction tx : Lists.transform(block.getTransactions(), tr -> (Transaction) tr.get())) {
 //				System.out.println(tx.getHash());
 //				System.out.println(tx.getHash().substring(0, 6) + " " + tx.getFrom());
 //				System.out.println(tx.getHash().substring(0, 6) + " " + tx.getTo());
 //				System.out.println(tx.getHash().substring(0, 6) + " " + tx.getInput());
 
-					if (accountCheck.contains(tx.getFrom().toLowerCase())) {
-						result.foundTransactions.add(new SimpleImmutableEntry<>(block, tx));
-						System.out.println("[FROM " + tx.getFrom().substring(0, 6) + "] " + tx.getHash());
-						continue;
-					}
-
-					if ((tx.getTo() != null) && accountCheck.contains(tx.getTo().toLowerCase())) {
-						result.foundTransactions.add(new SimpleImmutableEntry<>(block, tx));
-						System.out.println("[TO " + tx.getTo().substring(0, 6) + "] " + tx.getHash());
-						continue;
-					}
-
-					String inputLowercase = tx.getInput().toLowerCase();
-					for (int i = 0; i < inputCheck.size(); i++) {
-						String check = inputCheck.get(i);
-						if (inputLowercase.contains(check)) {
-							result.foundTransactions.add(new SimpleImmutableEntry<>(block, tx));
-							System.out.println("[INPUT 0x" + check.substring(0, 4) + "] " + tx.getHash());
-							continue nextTx;
-						}
+					String match = matchAccounts(tx.getFrom(), tx.getTo(), tx.getInput(), accountCheck, inputCheck);
+					if (match != null) {
+						foundConsumer.accept(FoundTransaction.of(block, tx));
+						result.foundCount++;
+						Log.debug(match + " " + tx.getHash());
 					}
 				}
+				if (scanListener != null) {
+					scanListener.accept(block);
+				}
 				lastProcessedBlock = block.getNumber().longValue();
 
 				if (forceStop) {
@@ -193,6 +211,54 @@ public class Web3Helper {
 		return result;
 	}
 
+	// The same rows as findTransactionsWithAccounts over the range, answered from an address index lookup of it
+	// Accounts the index cannot answer are searched with a scan of the range instead
+	public FindTransactionsResult findTransactionsFromIndex(LookupResult lookup, ContiguousSet<Long> blockRange,
+			List<String> accounts, int batchSize, Consumer<FoundTransaction> foundConsumer) throws IOException {
+		Set<String> accountCheck = accounts.stream().map(s -> s.toLowerCase()).collect(Collectors.toSet());
+		List<String> inputCheck = accounts.stream().map(s -> s.toLowerCase().substring(2)).collect(Collectors.toList());
+
+		Set<String> incomplete = new LinkedHashSet<>(lookup.incomplete);
+		List<AddressIndex.Position> missing = new ArrayList<>();
+		List<FoundTransaction> candidates = getTransactionsAt(lookup.positions, batchSize, missing);
+		if (!missing.isEmpty()) {
+			// Any of the accounts could have been in those txs
+			System.out.println("WARNING! The node has no transaction at " + missing.size()
+					+ " indexed positions (reorged or a different chain?), e.g. " + missing.get(0));
+			incomplete.addAll(accounts);
+		}
+
+		FindTransactionsResult result = new FindTransactionsResult();
+		Set<String> foundHashes = new HashSet<>();
+		for (FoundTransaction found : candidates) {
+			String match = matchAccounts(found.from, found.to, found.input, accountCheck, inputCheck);
+			if (match != null) {
+				foundHashes.add(found.hash.toLowerCase());
+				foundConsumer.accept(found);
+				result.foundCount++;
+				Log.debug(match + " " + found.hash);
+			}
+		}
+		result.lastProcessedBlock = blockRange.last();
+
+		if (!incomplete.isEmpty()) {
+			System.out.println("The address index cannot fully answer for " + incomplete
+					+ " (sampled out, too many transactions, excluded or not indexed), scanning blocks "
+					+ blockRange.first() + " to " + blockRange.last() + " for them instead...");
+			FindTransactionsResult scanResult = findTransactionsWithAccounts(blockRange,
+					new ArrayList<>(incomplete), batchSize, found -> {
+						if (foundHashes.add(found.hash.toLowerCase())) {
+							foundConsumer.accept(found);
+							result.foundCount++;
+						}
+					});
+			result.partialResult = scanResult.partialResult;
+			result.lastProcessedBlock = scanResult.lastProcessedBlock;
+		}
+
+		return result;
+	}
+
 	public void forceStop() {
 		forceStop = true;
 	}
@@ -260,6 +326,76 @@ public class Web3Helper {
 		return ret;
 	}
 
+	// Resolves (block, tx index) positions from the address index, in batches
+	// Positions the node has no transaction for are added to missing instead of being retried
+	public List<FoundTransaction> getTransactionsAt(List<AddressIndex.Position> positions, int batchSize,
+			List<AddressIndex.Position> missing) throws IOException {
+		List<FoundTransaction> ret = new ArrayList<>();
+		for (List<AddressIndex.Position> batch : Lists.partition(positions, Math.max(1, batchSize / 2))) {
+			List<Long> blockNumbers = batch.stream().map(p -> p.blockNumber).distinct().collect(Collectors.toList());
+
+			// Responses are matched up by content, the order is not guaranteed
+			Map<Long, Block> blocks = new HashMap<>();
+			Map<AddressIndex.Position, Transaction> transactions = new HashMap<>();
+			while (true) {
+				try {
+					// Built again on every attempt, a failed attempt replaces web3
+					BatchRequest batchRequest = web3.newBatch();
+					for (AddressIndex.Position position : batch) {
+						DefaultBlockParameter param = DefaultBlockParameter
+								.valueOf(BigInteger.valueOf(position.blockNumber));
+						BigInteger txIndex = BigInteger.valueOf(position.txIndex);
+						batchRequest.add(web3.ethGetTransactionByBlockNumberAndIndex(param, txIndex));
+					}
+					for (long blockNumber : blockNumbers) {
+						DefaultBlockParameter param = DefaultBlockParameter.valueOf(BigInteger.valueOf(blockNumber));
+						batchRequest.add(web3.ethGetBlockByNumber(param, false));
+					}
+
+					BatchResponse batchResponse = batchRequest.send();
+					for (Response<?> response : batchResponse.getResponses()) {
+						if (response.hasError()) {
+							throw new IOException("RPC error: " + response.getError().getMessage());
+						}
+						// A null result is a block or tx the node does not have, that is not going to change
+						if (response instanceof EthBlock) {
+							Block block = ((EthBlock) response).getBlock();
+							if (block != null) {
+								blocks.put(block.getNumber().longValue(), block);
+							}
+						} else {
+							Transaction tx = ((EthTransaction) response).getTransaction().orElse(null);
+							if (tx != null) {
+								transactions.put(new AddressIndex.Position(tx.getBlockNumber().longValue(),
+										tx.getTransactionIndex().intValue()), tx);
+							}
+						}
+					}
+					break;
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.out.println("Trying again in 15 seconds...");
+					Uninterruptibles.sleepUninterruptibly(15, TimeUnit.SECONDS);
+					web3.shutdown();
+					web3 = rpc.createWeb3();
+					blocks.clear();
+					transactions.clear();
+				}
+			}
+
+			for (AddressIndex.Position position : batch) {
+				Transaction tx = transactions.get(position);
+				Block block = blocks.get(position.blockNumber);
+				if (tx == null || block == null) {
+					missing.add(position);
+				} else {
+					ret.add(FoundTransaction.of(block, tx));
+				}
+			}
+		}
+		return ret;
+	}
+
 	public LazyWeakSparseImmutableList<Block> getBlockList(ContiguousSet<Long> blockRange,
 			boolean returnFullTransactionObjects) throws IOException {
 		Long startBlock = blockRange.first();
@@ -284,4 +420,9 @@ public class Web3Helper {
 	public void setBlockCacheBatchSize(int blockCacheBatchSize) {
 		this.blockCacheBatchSize = blockCacheBatchSize;
 	}
+
+	// Called with every block the scan finishes, such as the address index
+	public void setScanListener(Consumer<Block> scanListener) {
+		this.scanListener = scanListener;
+	}
 }
@@ -0,0 +1,431 @@
+package com.demod.crypto.explorer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.demod.crypto.evm.FoundTransaction;
+import com.demod.crypto.evm.RPC;
+import com.demod.crypto.evm.Web3Helper;
+import com.demod.crypto.util.Log;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+// Account history from the Etherscan family of explorer APIs, instead of a block scan
+public class ExplorerApiHelper {
+
+	public static enum Action {
+		NORMAL("txlist"), INTERNAL("txlistinternal"), TOKEN("tokentx");
+
+		private final String apiAction;
+
+		private Action(String apiAction) {
+			this.apiAction = apiAction;
+		}
+
+		public String getApiAction() {
+			return apiAction;
+		}
+	}
+
+	private static final Map<String, String> API_URLS = ImmutableMap.of(//
+			"https://bscscan.com/", "https://api.bscscan.com/api", //
+			"https://polygonscan.com/", "https://api.polygonscan.com/api", //
+			"https://snowtrace.io/", "https://api.snowtrace.io/api", //
+			"https://etherscan.io/", "https://api.etherscan.io/api"//
+	);
+
+	public static final int PAGE_SIZE = 1000;
+	public static final int PARALLEL_PAGES = 4;
+	public static final int RESULT_WINDOW = 10000; // page * offset cannot go past this
+
+	public static final String TOKEN_TRANSFERS_FILE_NAME = "explorer-token-transfers.json";
+	private static final String CURSORS_FILE_NAME = "explorer-cursors.json";
+
+	// Etherscan style messages, such as "Max rate limit reached" or "Max calls per sec rate limit reached (5/sec)"
+	private static boolean isRateLimited(String message) {
+		return message.toLowerCase().contains("rate limit");
+	}
+
+	private static JSONObject loadJson(File jsonFile) {
+		try {
+			return new JSONObject(Files.readString(jsonFile.toPath()));
+		} catch (NoSuchFileException e) {
+			return new JSONObject();
+		} catch (JSONException | IOException e) {
+			e.printStackTrace();
+			return new JSONObject();
+		}
+	}
+
+	// Records a live run for one address, to be served by ExplorerApiStandIn
+	// Args: (chain) (address) (start block) (end block)
+	public static void main(String[] args) throws IOException {
+		RPC rpc = RPC.byName(args[0]);
+		String address = args[1];
+		long startBlock = Long.parseLong(args[2]);
+		long endBlock = Long.parseLong(args[3]);
+
+		ExplorerApiHelper helper = new ExplorerApiHelper(rpc);
+		File recordFolder = new File("data/explorer-recordings/" + rpc.getName());
+		recordFolder.mkdirs();
+		helper.setRecordFolder(recordFolder);
+
+		File folder = new File(recordFolder, "results");
+		folder.mkdirs();
+		helper.findTransactions(folder, List.of(address), Web3Helper.contiguousSet(startBlock, endBlock));
+		helper.shutdown();
+	}
+
+	// Recordings are named by the query, so the stand-in server can find them
+	public static String recordingName(String apiAction, String address, long startBlock, int page) {
+		return apiAction + "-" + address.toLowerCase() + "-" + startBlock + "-" + page + ".json";
+	}
+
+	private final RPC rpc;
+	private final String apiUrl;
+	private final String apiKey;
+	private final long apiRateMs;
+
+	private final ExecutorService executor;
+
+	private File recordFolder = null;
+
+	private long nextApiMillis = 0;
+
+	public ExplorerApiHelper(RPC rpc) {
+		this(rpc, rpc.getExplorerApiUrl() != null ? rpc.getExplorerApiUrl() : API_URLS.get(rpc.getExplorerUrl()),
+				rpc.getExplorerApiKey(), rpc.getExplorerApiRate());
+	}
+
+	public ExplorerApiHelper(RPC rpc, String apiUrl, String apiKey, int requestsPerSecond) {
+		Preconditions.checkArgument(apiUrl != null, "Supported explorer APIs: " + API_URLS.keySet()
+				+ " (or set explorer-api-url in rpc.json)");
+		this.rpc = rpc;
+		this.apiUrl = apiUrl;
+		this.apiKey = apiKey;
+		this.apiRateMs = 1000L / Math.max(1, requestsPerSecond) + 10L;
+
+		executor = Executors.newFixedThreadPool(PARALLEL_PAGES, r -> {
+			Thread thread = new Thread(r, "Explorer API");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Blocks until the next request is allowed, shared by every page thread
+	private void awaitRateLimit() {
+		long waitMillis;
+		synchronized (this) {
+			long currentMillis = System.currentTimeMillis();
+			long slot = Math.max(currentMillis, nextApiMillis);
+			nextApiMillis = slot + apiRateMs;
+			waitMillis = slot - currentMillis;
+		}
+		if (waitMillis > 0) {
+			Uninterruptibles.sleepUninterruptibly(waitMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private JSONArray fetchPage(Action action, String address, long startBlock, long endBlock, int page) {
+		String queryStr = apiUrl + "?module=account&action=" + action.getApiAction() + "&address=" + address
+				+ "&startblock=" + startBlock + "&endblock=" + endBlock + "&page=" + page + "&offset=" + PAGE_SIZE
+				+ "&sort=asc";
+		String urlStr = queryStr + (apiKey.isEmpty() ? "" : "&apikey=" + apiKey);
+		int backoffSeconds = 5;
+		while (true) {
+			try {
+				awaitRateLimit();
+				String response = Resources.toString(new URL(urlStr), Charsets.UTF_8);
+				JSONObject json = new JSONObject(response);
+				Object result = json.get("result");
+				if (!json.getString("status").equals("1") && !(result instanceof JSONArray)) {
+					// Error, result is the message, only a rate limit is worth waiting out
+					String error = json.optString("message") + " -- " + result;
+					if (!isRateLimited(result.toString())) {
+						throw new IllegalStateException("Explorer API error: " + error + " (" + queryStr + ")");
+					}
+					throw new IOException(error);
+				}
+				if (recordFolder != null) {
+					Files.writeString(new File(recordFolder,
+							recordingName(action.getApiAction(), address, startBlock, page)).toPath(), response);
+				}
+				// "No transactions found" also comes back as status 0 with an empty result
+				return (JSONArray) result;
+			} catch (JSONException | IOException e) {
+				System.err.println("URL: " + queryStr);
+				e.printStackTrace();
+				System.out.println("Waiting " + backoffSeconds + " seconds...");
+				Uninterruptibles.sleepUninterruptibly(backoffSeconds, TimeUnit.SECONDS);
+				backoffSeconds = Math.min(backoffSeconds * 2, 300);
+			}
+		}
+	}
+
+	// Pages through one history list, appending rows to the results file
+	// The cursor is saved after every wave of pages, so it can be resumed
+	private void fetchHistory(Action action, String address, ContiguousSet<Long> blockRange, File resultsFile,
+			JSONObject cursorJson, Runnable saveCursors) throws IOException {
+		if (cursorJson.optBoolean("done")) {
+			return;
+		}
+		long startBlock = cursorJson.optLong("start-block", blockRange.first());
+		int page = cursorJson.optInt("page", 1);
+		long endBlock = blockRange.last();
+
+		while (true) {
+			int maxPage = RESULT_WINDOW / PAGE_SIZE;
+			List<Integer> wavePages = new ArrayList<>();
+			for (int p = page; p < page + PARALLEL_PAGES && p <= maxPage; p++) {
+				wavePages.add(p);
+			}
+
+			List<Future<JSONArray>> futures = new ArrayList<>();
+			for (int p : wavePages) {
+				long waveStartBlock = startBlock;
+				futures.add(executor.submit(() -> fetchPage(action, address, waveStartBlock, endBlock, p)));
+			}
+
+			boolean done = false;
+			long lastBlockSeen = startBlock;
+			try (PrintWriter pw = new PrintWriter(new FileOutputStream(resultsFile, true))) {
+				for (Future<JSONArray> future : futures) {
+					JSONArray rows = future.get();
+					for (int i = 0; i < rows.length(); i++) {
+						JSONObject row = rows.getJSONObject(i);
+						pw.println(row.toString());
+						lastBlockSeen = row.getLong("blockNumber");
+					}
+					if (rows.length() < PAGE_SIZE) {
+						done = true;
+						break;
+					}
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				throw new IOException(e);
+			}
+
+			Log.debug("\t" + action.name() + " " + address.substring(0, 6) + " page " + page + "-"
+					+ wavePages.get(wavePages.size() - 1) + " (from block " + startBlock + ")");
+
+			if (done) {
+				cursorJson.put("done", true);
+				saveCursors.run();
+				return;
+			}
+
+			page += wavePages.size();
+			if (page > maxPage) {
+				// Result window is used up, continue from the last block seen (duplicates are removed later)
+				if (lastBlockSeen == startBlock) {
+					System.err.println("\tMore than " + RESULT_WINDOW + " entries in block " + startBlock
+							+ ", some will be missing!");
+					lastBlockSeen++;
+				}
+				startBlock = lastBlockSeen;
+				page = 1;
+			}
+			cursorJson.put("start-block", startBlock);
+			cursorJson.put("page", page);
+			saveCursors.run();
+		}
+	}
+
+	// Writes transactions.csv, the script 1 sidecar, and the token transfers for script 2
+	public int findTransactions(File folder, List<String> accounts, ContiguousSet<Long> blockRange)
+			throws IOException {
+		File historyFolder = new File(folder, "explorer");
+		historyFolder.mkdirs();
+
+		File cursorsFile = new File(folder, CURSORS_FILE_NAME);
+		JSONObject cursorsJson = loadJson(cursorsFile);
+		Runnable saveCursors = () -> {
+			synchronized (cursorsJson) {
+				try {
+					Files.writeString(cursorsFile.toPath(), cursorsJson.toString(2));
+				} catch (JSONException | IOException e) {
+					e.printStackTrace();
+					System.out.println("Failed to save explorer cursors!");
+				}
+			}
+		};
+
+		for (String account : accounts) {
+			for (Action action : Action.values()) {
+				String key = action.getApiAction() + "-" + account.toLowerCase();
+				JSONObject cursorJson = cursorsJson.optJSONObject(key);
+				if (cursorJson == null) {
+					cursorsJson.put(key, cursorJson = new JSONObject());
+				}
+				fetchHistory(action, account, blockRange, new File(historyFolder, key + ".ndjson"), cursorJson,
+						saveCursors);
+			}
+		}
+
+		return writeResults(folder, historyFolder);
+	}
+
+	public void setRecordFolder(File recordFolder) {
+		this.recordFolder = recordFolder;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private TokenTransfer toTokenTransfer(Action action, JSONObject row) {
+		TokenTransfer ret = new TokenTransfer();
+		ret.fromAddress = row.getString("from");
+		ret.toAddress = row.getString("to");
+		if (action == Action.TOKEN) {
+			String decimals = row.optString("tokenDecimal");
+			ret.amount = new BigDecimal(new BigInteger(row.getString("value")),
+					decimals.isBlank() ? 0 : Integer.parseInt(decimals));
+			ret.tokenSymbol = row.getString("tokenSymbol");
+			ret.tokenName = row.optString("tokenName", null);
+			ret.tokenAddress = row.optString("contractAddress", null);
+		} else {
+			ret.amount = rpc.nativeDecimal(new BigInteger(row.getString("value")));
+			ret.tokenSymbol = rpc.getCurrencySymbol();
+		}
+		return ret;
+	}
+
+	private int writeResults(File folder, File historyFolder) throws IOException {
+		Map<String, long[]> txOrder = new LinkedHashMap<>();// hash -> block, index
+		Map<String, FoundTransaction> foundTransactions = new LinkedHashMap<>();
+		Map<String, List<TokenTransfer>> tokenTransfers = new LinkedHashMap<>();
+		Set<String> seenRows = new HashSet<>();
+
+		for (Action action : Action.values()) {
+			File[] files = historyFolder.listFiles((d, n) -> n.startsWith(action.getApiAction() + "-"));
+			for (File file : files) {
+				for (String line : Files.readAllLines(file.toPath())) {
+					if (line.isBlank()) {
+						continue;
+					}
+					JSONObject row = new JSONObject(line);
+					String hash = row.getString("hash").toLowerCase();
+
+					// The same row can show up for two of our wallets, or after a resume
+					String rowKey;
+					switch (action) {
+					case TOKEN:
+						rowKey = "T" + hash + "#" + row.optString("logIndex");
+						break;
+					case INTERNAL:
+						rowKey = "I" + hash + "#" + row.optString("traceId") + "#" + row.getString("from") + "#"
+								+ row.getString("to") + "#" + row.getString("value");
+						break;
+					default:
+						rowKey = "N" + hash;
+						break;
+					}
+					if (!seenRows.add(rowKey)) {
+						continue;
+					}
+
+					long blockNumber = row.getLong("blockNumber");
+					long txIndex = row.optLong("transactionIndex", Long.MAX_VALUE);
+					long[] order = txOrder.get(hash);
+					if (order == null) {
+						txOrder.put(hash, new long[] { blockNumber, txIndex });
+					} else {
+						order[1] = Math.min(order[1], txIndex);
+					}
+					List<TokenTransfer> transfers = tokenTransfers.get(hash);
+					if (transfers == null) {
+						tokenTransfers.put(hash, transfers = new ArrayList<>());
+					}
+
+					if (action == Action.NORMAL) {
+						FoundTransaction found = new FoundTransaction();
+						found.hash = row.getString("hash");
+						found.blockNumber = blockNumber;
+						found.timestamp = row.getLong("timeStamp");
+						found.from = row.getString("from");
+						found.to = row.getString("to").isEmpty() ? row.optString("contractAddress", null)
+								: row.getString("to");
+						found.input = row.getString("input");
+						found.value = new BigInteger(row.getString("value"));
+						found.gasPrice = new BigInteger(row.getString("gasPrice"));
+						foundTransactions.put(hash, found);
+
+					} else if (action == Action.INTERNAL && row.optString("isError", "0").equals("1")) {
+						continue;// Reverted, nothing moved
+
+					} else if (action != Action.NORMAL) {
+						transfers.add(toTokenTransfer(action, row));
+					}
+				}
+			}
+		}
+
+		List<String> orderedHashes = new ArrayList<>(txOrder.keySet());
+		orderedHashes.sort(Comparator.<String>comparingLong(h -> txOrder.get(h)[0])
+				.thenComparingLong(h -> txOrder.get(h)[1]));
+
+		File transactionsCsvFile = new File(folder, "transactions.csv");
+		Set<String> knownHashes = new HashSet<>();
+		if (transactionsCsvFile.exists()) {
+			Files.readAllLines(transactionsCsvFile.toPath()).forEach(h -> knownHashes.add(h.toLowerCase()));
+		}
+
+		int addedCount = 0;
+		try (PrintWriter pw = new PrintWriter(new FileOutputStream(transactionsCsvFile, true));
+				PrintWriter pwMeta = new PrintWriter(
+						new FileOutputStream(new File(folder, FoundTransaction.SIDECAR_FILE_NAME), true))) {
+			for (String hash : orderedHashes) {
+				if (!knownHashes.add(hash)) {
+					continue;
+				}
+				FoundTransaction found = foundTransactions.get(hash);
+				pw.println(found != null ? found.hash : hash);
+				if (found != null) {
+					found.writeSidecarLine(pwMeta);
+				}
+				addedCount++;
+			}
+		}
+
+		// Only transfers touching our wallets are listed, which is all script 3 looks at
+		JSONObject tokenTransfersJson = new JSONObject();
+		for (String hash : orderedHashes) {
+			JSONArray transfersJson = new JSONArray();
+			for (TokenTransfer transfer : tokenTransfers.get(hash)) {
+				transfersJson.put(transfer.toJson());
+			}
+			tokenTransfersJson.put(hash, transfersJson);
+		}
+		Files.writeString(new File(folder, TOKEN_TRANSFERS_FILE_NAME).toPath(), tokenTransfersJson.toString(2));
+
+		return addedCount;
+	}
+}
@@ -0,0 +1,70 @@
+package com.demod.crypto.explorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves responses recorded by ExplorerApiHelper, so the API mode can be run offline
+// Point explorer-api-url in rpc.json to http://localhost:(port)/api
+// Args: [chain] [port]
+public class ExplorerApiStandIn {
+
+	private static final String EMPTY_RESPONSE = "{\"status\":\"0\",\"message\":\"No transactions found\","
+			+ "\"result\":[]}";
+
+	private static void handle(File folder, HttpExchange exchange) throws IOException {
+		Map<String, String> query = new HashMap<>();
+		String rawQuery = exchange.getRequestURI().getRawQuery();
+		if (rawQuery != null) {
+			for (String param : rawQuery.split("&")) {
+				int split = param.indexOf('=');
+				if (split != -1) {
+					query.put(param.substring(0, split), param.substring(split + 1));
+				}
+			}
+		}
+
+		String response = EMPTY_RESPONSE;
+		try {
+			File file = new File(folder, ExplorerApiHelper.recordingName(query.get("action"), query.get("address"),
+					Long.parseLong(query.get("startblock")), Integer.parseInt(query.get("page"))));
+			if (file.exists()) {
+				response = Files.readString(file.toPath());
+			}
+			System.out.println((file.exists() ? "HIT  " : "MISS ") + file.getName());
+		} catch (NullPointerException | NumberFormatException e) {
+			response = "{\"status\":\"0\",\"message\":\"NOTOK\",\"result\":\"Bad query\"}";
+		}
+
+		byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		// Same folder ExplorerApiHelper records into
+		File folder = new File("data/explorer-recordings/" + (args.length > 0 ? args[0] : "Ethereum"));
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8088;
+		start(folder, port);
+		System.out.println("Explorer API stand-in serving " + folder.getAbsolutePath() + " at http://localhost:" + port
+				+ "/api");
+	}
+
+	public static HttpServer start(File folder, int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/api", exchange -> handle(folder, exchange));
+		server.start();
+		return server;
+	}
+}
@@ -2,7 +2,23 @@ package com.demod.crypto.explorer;
 
 import java.math.BigDecimal;
 
+import org.json.JSONObject;
+
 public class TokenTransfer {
+	public static TokenTransfer fromJson(JSONObject json) {
+		TokenTransfer ret = new TokenTransfer();
+		ret.fromAddress = json.getString("from-address");
+		ret.fromAddressAlias = json.optString("from-address-alias", null);
+		ret.toAddress = json.getString("to-address");
+		ret.toAddressAlias = json.optString("to-address-alias", null);
+		ret.amount = json.getBigDecimal("amount");
+		ret.amountCurrentUSD = json.optBigDecimal("amount-current-USD", null);
+		ret.tokenSymbol = json.getString("token-symbol");
+		ret.tokenName = json.optString("token-name", null);
+		ret.tokenAddress = json.optString("token-address", null);
+		return ret;
+	}
+
 	public String fromAddress;
 	public String fromAddressAlias;
 	public String toAddress;
@@ -13,6 +29,20 @@ public class TokenTransfer {
 	public String tokenName;
 	public String tokenAddress;
 
+	public JSONObject toJson() {
+		JSONObject json = new JSONObject();
+		json.put("from-address", fromAddress);
+		json.put("from-address-alias", fromAddressAlias);
+		json.put("to-address", toAddress);
+		json.put("to-address-alias", toAddressAlias);
+		json.put("amount", amount);
+		json.put("amount-current-USD", amountCurrentUSD);
+		json.put("token-symbol", tokenSymbol);
+		json.put("token-name", tokenName);
+		json.put("token-address", tokenAddress);
+		return json;
+	}
+
 	@Override
 	public String toString() {
 		return "ScrapedTokenTransfer [fromAddress=" + fromAddress + ", fromAddressAlias=" + fromAddressAlias
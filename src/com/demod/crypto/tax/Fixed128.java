@@ -0,0 +1,320 @@
+package com.demod.crypto.tax;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+// A decimal with exactly 18 places, held as a 128 bit two's complement count of 1e-18 units (about +/-1.7e20)
+// The range is kept symmetric, so negating never overflows
+// Results that do not fit throw ArithmeticException, multiply and divide round half up like BigDecimal
+public final class Fixed128 implements Comparable<Fixed128> {
+
+	public static final int SCALE = 18;
+
+	private static final long UNIT = 1_000_000_000_000_000_000L;
+	private static final long MASK = 0xFFFFFFFFL;
+	private static final long[] POWERS_OF_TEN = new long[SCALE + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	public static final Fixed128 ZERO = new Fixed128(0, 0);
+	public static final Fixed128 ONE = new Fixed128(0, UNIT);
+
+	// Rounded half up to 18 places
+	public static Fixed128 fromBigDecimal(BigDecimal value) {
+		// Most amounts and values have few digits, and can skip BigInteger
+		int scale = value.scale();
+		if (scale >= 0 && scale <= SCALE && value.precision() <= 18) {
+			long unscaled = value.scaleByPowerOfTen(scale).longValueExact();
+			long magnitude = Math.abs(unscaled);
+			long factor = POWERS_OF_TEN[SCALE - scale];
+			Fixed128 ret = new Fixed128(unsignedMultiplyHigh(magnitude, factor), magnitude * factor);
+			return unscaled < 0 ? ret.negate() : ret;
+		}
+
+		BigInteger units = value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue();
+		if (units.abs().bitLength() > 127) {
+			throw new ArithmeticException("Too large for Fixed128: " + value.toPlainString());
+		}
+		return new Fixed128(units.shiftRight(64).longValue(), units.longValue());
+	}
+
+	private static boolean isNegative(long hi) {
+		return hi < 0;
+	}
+
+	// The one two's complement value with no positive twin
+	private static boolean isOutside(long hi, long lo) {
+		return hi == Long.MIN_VALUE && lo == 0;
+	}
+
+	// a * b / c, rounded once
+	// Works on 64 bit limbs in locals, so nothing is allocated but the result
+	public static Fixed128 mulDiv(Fixed128 a, Fixed128 b, Fixed128 c) {
+		if (c.isZero()) {
+			throw new ArithmeticException("Division by zero");
+		}
+		if (a.isZero() || b.isZero()) {
+			return ZERO;
+		}
+		boolean negative = ((a.hi ^ b.hi ^ c.hi) < 0);
+
+		// Magnitudes, all below 2^127
+		long a0 = a.lo, a1 = a.hi;
+		if (a1 < 0) {
+			a0 = -a0;
+			a1 = ~a1 + (a0 == 0 ? 1 : 0);
+		}
+		long b0 = b.lo, b1 = b.hi;
+		if (b1 < 0) {
+			b0 = -b0;
+			b1 = ~b1 + (b0 == 0 ? 1 : 0);
+		}
+		long c0 = c.lo, c1 = c.hi;
+		if (c1 < 0) {
+			c0 = -c0;
+			c1 = ~c1 + (c0 == 0 ? 1 : 0);
+		}
+
+		// 256 bit product p3:p2:p1:p0
+		long p0 = a0 * b0;
+		long p1 = unsignedMultiplyHigh(a0, b0);
+		long p2 = 0;
+		long p3 = 0;
+		if (a1 != 0 || b1 != 0) {
+			long t = a0 * b1;
+			p1 += t;
+			p2 = unsignedMultiplyHigh(a0, b1) + (Long.compareUnsigned(p1, t) < 0 ? 1 : 0);
+			t = a1 * b0;
+			p1 += t;
+			long h = unsignedMultiplyHigh(a1, b0) + (Long.compareUnsigned(p1, t) < 0 ? 1 : 0);
+			p2 += h;
+			p3 = Long.compareUnsigned(p2, h) < 0 ? 1 : 0;
+			t = a1 * b1;
+			p2 += t;
+			p3 += unsignedMultiplyHigh(a1, b1) + (Long.compareUnsigned(p2, t) < 0 ? 1 : 0);
+		}
+
+		long q1, q0;
+		boolean roundUp;
+		if (c1 == 0) {
+			// Quotient fits in 128 bits only if the top half is below the divisor
+			if (p3 != 0 || Long.compareUnsigned(p2, c0) >= 0) {
+				throw new ArithmeticException("Overflow");
+			}
+			q1 = divideUnsigned128(p2, p1, c0);
+			long r = p1 - q1 * c0;
+			q0 = divideUnsigned128(r, p0, c0);
+			r = p0 - q0 * c0;
+			roundUp = Long.compareUnsigned(r, c0 - r) >= 0;
+		} else {
+			if (p3 != c1 ? Long.compareUnsigned(p3, c1) > 0 : Long.compareUnsigned(p2, c0) >= 0) {
+				throw new ArithmeticException("Overflow");
+			}
+
+			// Knuth's algorithm D with two limb divisor, normalized so its top bit is set
+			int s = Long.numberOfLeadingZeros(c1);
+			long v1 = s == 0 ? c1 : (c1 << s) | (c0 >>> (64 - s));
+			long v0 = c0 << s;
+			long u3 = s == 0 ? p3 : (p3 << s) | (p2 >>> (64 - s));
+			long u2 = s == 0 ? p2 : (p2 << s) | (p1 >>> (64 - s));
+			long u1 = s == 0 ? p1 : (p1 << s) | (p0 >>> (64 - s));
+			long u0 = p0 << s;
+
+			q1 = quotientDigit(u3, u2, u1, v1, v0);
+			long m0 = q1 * v0;
+			long m1 = unsignedMultiplyHigh(q1, v0) + q1 * v1;
+			long r0 = u1 - m0;
+			long r1 = u2 - m1 - (Long.compareUnsigned(u1, m0) < 0 ? 1 : 0);
+
+			q0 = quotientDigit(r1, r0, u0, v1, v0);
+			m0 = q0 * v0;
+			m1 = unsignedMultiplyHigh(q0, v0) + q0 * v1;
+			long n0 = u0 - m0;
+			long n1 = r0 - m1 - (Long.compareUnsigned(u0, m0) < 0 ? 1 : 0);
+
+			// Remainder and divisor are both scaled by 2^s, which does not change the comparison
+			long d0 = v0 - n0;
+			long d1 = v1 - n1 - (Long.compareUnsigned(v0, n0) < 0 ? 1 : 0);
+			roundUp = n1 != d1 ? Long.compareUnsigned(n1, d1) > 0 : Long.compareUnsigned(n0, d0) >= 0;
+		}
+
+		if (roundUp) {
+			q0++;
+			if (q0 == 0) {
+				q1++;
+			}
+		}
+		if (q1 < 0) {
+			throw new ArithmeticException("Overflow");
+		}
+		Fixed128 ret = new Fixed128(q1, q0);
+		return negative ? ret.negate() : ret;
+	}
+
+	// u1:u0 / v, where u1 is below v
+	private static long divideUnsigned128(long u1, long u0, long v) {
+		if (u1 == 0) {
+			return Long.divideUnsigned(u0, v);
+		}
+
+		// Hacker's Delight divlu, on 32 bit halves
+		int s = Long.numberOfLeadingZeros(v);
+		v <<= s;
+		long vn1 = v >>> 32;
+		long vn0 = v & MASK;
+		long un32 = s == 0 ? u1 : (u1 << s) | (u0 >>> (64 - s));
+		long un10 = u0 << s;
+		long un1 = un10 >>> 32;
+		long un0 = un10 & MASK;
+
+		long q1 = Long.divideUnsigned(un32, vn1);
+		long rhat = un32 - q1 * vn1;
+		while (q1 > MASK || Long.compareUnsigned(q1 * vn0, (rhat << 32) | un1) > 0) {
+			q1--;
+			rhat += vn1;
+			if (rhat > MASK) {
+				break;
+			}
+		}
+
+		long un21 = (un32 << 32) + un1 - q1 * v;
+		long q0 = Long.divideUnsigned(un21, vn1);
+		rhat = un21 - q0 * vn1;
+		while (q0 > MASK || Long.compareUnsigned(q0 * vn0, (rhat << 32) | un0) > 0) {
+			q0--;
+			rhat += vn1;
+			if (rhat > MASK) {
+				break;
+			}
+		}
+		return (q1 << 32) | q0;
+	}
+
+	// u2:u1:u0 / v1:v0 where the result fits in one limb, v1 has its top bit set
+	private static long quotientDigit(long u2, long u1, long u0, long v1, long v0) {
+		// At most two too high when the divisor is normalized
+		long qhat = u2 == v1 ? -1L : divideUnsigned128(u2, u1, v1);
+
+		long m0 = qhat * v0;
+		long h = unsignedMultiplyHigh(qhat, v0);
+		long m1 = qhat * v1 + h;
+		long m2 = unsignedMultiplyHigh(qhat, v1) + (Long.compareUnsigned(m1, h) < 0 ? 1 : 0);
+		while (m2 != u2 ? Long.compareUnsigned(m2, u2) > 0
+				: m1 != u1 ? Long.compareUnsigned(m1, u1) > 0 : Long.compareUnsigned(m0, u0) > 0) {
+			qhat--;
+			long borrow = Long.compareUnsigned(m0, v0) < 0 ? 1 : 0;
+			m0 -= v0;
+			long next = m1 - v1 - borrow;
+			borrow = Long.compareUnsigned(m1, v1) < 0 || (m1 == v1 && borrow == 1) ? 1 : 0;
+			m1 = next;
+			m2 -= borrow;
+		}
+		return qhat;
+	}
+
+	private static long unsignedMultiplyHigh(long x, long y) {
+		return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+	}
+
+	private final long hi;
+	private final long lo;
+
+	private Fixed128(long hi, long lo) {
+		this.hi = hi;
+		this.lo = lo;
+	}
+
+	public Fixed128 abs() {
+		return isNegative(hi) ? negate() : this;
+	}
+
+	public Fixed128 add(Fixed128 other) {
+		long sumLo = lo + other.lo;
+		long carry = Long.compareUnsigned(sumLo, lo) < 0 ? 1 : 0;
+		long sumHi = hi + other.hi + carry;
+		// Same signs in, different sign out
+		if (((hi ^ sumHi) & (other.hi ^ sumHi)) < 0 || isOutside(sumHi, sumLo)) {
+			throw new ArithmeticException("Overflow");
+		}
+		return new Fixed128(sumHi, sumLo);
+	}
+
+	@Override
+	public int compareTo(Fixed128 other) {
+		int ret = Long.compare(hi, other.hi);
+		return ret != 0 ? ret : Long.compareUnsigned(lo, other.lo);
+	}
+
+	// Rounded half up
+	public Fixed128 divide(Fixed128 divisor) {
+		return mulDiv(this, ONE, divisor);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Fixed128)) {
+			return false;
+		}
+		Fixed128 other = (Fixed128) obj;
+		return hi == other.hi && lo == other.lo;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(hi) * 31 + Long.hashCode(lo);
+	}
+
+	public boolean isZero() {
+		return hi == 0 && lo == 0;
+	}
+
+	// Rounded half up
+	public Fixed128 multiply(Fixed128 other) {
+		return mulDiv(this, other, ONE);
+	}
+
+	public Fixed128 negate() {
+		return new Fixed128(~hi + (lo == 0 ? 1 : 0), -lo);
+	}
+
+	public int signum() {
+		if (isNegative(hi)) {
+			return -1;
+		}
+		return isZero() ? 0 : 1;
+	}
+
+	public Fixed128 subtract(Fixed128 other) {
+		long diffLo = lo - other.lo;
+		long borrow = Long.compareUnsigned(lo, other.lo) < 0 ? 1 : 0;
+		long diffHi = hi - other.hi - borrow;
+		// Different signs in, and the sign flipped
+		if (((hi ^ other.hi) & (hi ^ diffHi)) < 0 || isOutside(diffHi, diffLo)) {
+			throw new ArithmeticException("Overflow");
+		}
+		return new Fixed128(diffHi, diffLo);
+	}
+
+	// Always 18 places
+	public BigDecimal toBigDecimal() {
+		if (hi == (lo >> 63)) {
+			return BigDecimal.valueOf(lo, SCALE);
+		}
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			bytes[i] = (byte) (hi >>> (56 - 8 * i));
+			bytes[i + 8] = (byte) (lo >>> (56 - 8 * i));
+		}
+		return new BigDecimal(new BigInteger(bytes), SCALE);
+	}
+
+	@Override
+	public String toString() {
+		return toBigDecimal().toPlainString();
+	}
+}
@@ -0,0 +1,130 @@
+package com.demod.crypto.tax;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+// Loss Gain Utilization, each pick is a few range queries instead of a look through every lot
+// Lots are split into short and long term, and move to long term as the pick dates pass their holding period
+// Picks must come in date order, which they do since events are sorted
+public class LgutLotPool<N> extends LotPool<N> {
+
+	private class Term {
+		private final TreeSet<TaxLot<N>> byPrice = new TreeSet<>(byPriceOrder);
+		private final TreeSet<TaxLot<N>> byPriceThenNewest = new TreeSet<>(byPriceThenNewestOrder);
+
+		public void add(TaxLot<N> lot) {
+			byPrice.add(lot);
+			byPriceThenNewest.add(lot);
+		}
+
+		// Greatest loss first, null if none
+		public TaxLot<N> pickLoss(N effectiveSellPrice) {
+			if (byPrice.isEmpty()) {
+				return null;
+			}
+			TaxLot<N> lot = byPrice.first();
+			return math.compare(lot.getEffectiveBuyPrice(), effectiveSellPrice) > 0 ? lot : null;
+		}
+
+		// Least gained first, null if none
+		public TaxLot<N> pickGain(N effectiveSellPrice) {
+			return byPrice.higher(TaxLot.probe(math, effectiveSellPrice, LocalDateTime.MAX, Long.MAX_VALUE));
+		}
+
+		// Newest first, null if none
+		public TaxLot<N> pickNone(N effectiveSellPrice) {
+			TaxLot<N> lot = byPriceThenNewest
+					.ceiling(TaxLot.probe(math, effectiveSellPrice, LocalDateTime.MAX, Long.MIN_VALUE));
+			return lot != null && math.compare(lot.getEffectiveBuyPrice(), effectiveSellPrice) == 0 ? lot : null;
+		}
+
+		public boolean remove(TaxLot<N> lot) {
+			if (byPrice.remove(lot)) {
+				byPriceThenNewest.remove(lot);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private final LotMath<N> math;
+
+	// Highest price first, then the order lots were added
+	private final Comparator<TaxLot<N>> byPriceOrder;
+	// Lowest price first, then the newest, then the order lots were added
+	private final Comparator<TaxLot<N>> byPriceThenNewestOrder;
+
+	private final Term shortTerm;
+	private final Term longTerm;
+	// Oldest first, for moving lots to long term
+	private final TreeSet<TaxLot<N>> shortTermByDate = new TreeSet<>(
+			Comparator.<TaxLot<N>, LocalDateTime>comparing(TaxLot::getDateTime)
+					.thenComparingLong(TaxLot::getPoolSequence));
+
+	public LgutLotPool(LotMath<N> math) {
+		this.math = math;
+		byPriceOrder = Comparator.<TaxLot<N>, N>comparing(TaxLot::getEffectiveBuyPrice, math.reversed())
+				.thenComparingLong(TaxLot::getPoolSequence);
+		byPriceThenNewestOrder = Comparator.<TaxLot<N>, N>comparing(TaxLot::getEffectiveBuyPrice, math)
+				.thenComparing(TaxLot::getDateTime, Comparator.reverseOrder())
+				.thenComparingLong(TaxLot::getPoolSequence);
+		shortTerm = new Term();
+		longTerm = new Term();
+	}
+
+	@Override
+	protected void delete(TaxLot<N> lot) {
+		if (shortTerm.remove(lot)) {
+			shortTermByDate.remove(lot);
+		} else {
+			longTerm.remove(lot);
+		}
+	}
+
+	@Override
+	protected void insert(TaxLot<N> lot) {
+		// Moved to long term at the next pick, if it is old enough
+		shortTerm.add(lot);
+		shortTermByDate.add(lot);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return shortTermByDate.isEmpty() && longTerm.byPrice.isEmpty();
+	}
+
+	@Override
+	protected boolean isKeyedByPrice() {
+		return true;
+	}
+
+	@Override
+	public TaxLot<N> pick(LocalDateTime date, N amount, N proceeds) {
+		while (!shortTermByDate.isEmpty() && TaxLot.isLongTerm(shortTermByDate.first().getDateTime(), date)) {
+			TaxLot<N> lot = shortTermByDate.pollFirst();
+			shortTerm.remove(lot);
+			longTerm.add(lot);
+		}
+
+		N effectiveSellPrice = math.ratio(proceeds, amount);
+
+		TaxLot<N> pick = shortTerm.pickLoss(effectiveSellPrice);
+		if (pick == null) {
+			pick = longTerm.pickLoss(effectiveSellPrice);
+		}
+		if (pick == null) {
+			pick = shortTerm.pickNone(effectiveSellPrice);
+		}
+		if (pick == null) {
+			pick = longTerm.pickNone(effectiveSellPrice);
+		}
+		if (pick == null) {
+			pick = longTerm.pickGain(effectiveSellPrice);
+		}
+		if (pick == null) {
+			pick = shortTerm.pickGain(effectiveSellPrice);
+		}
+		return pick;
+	}
+}
@@ -0,0 +1,158 @@
+package com.demod.crypto.tax;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.demod.crypto.tax.TaxEvent.TaxEventType;
+import com.demod.crypto.tax.TaxLot.AccrualType;
+import com.google.common.base.Verify;
+
+// Turns sorted events into lots, in whichever number type the LotMath uses
+public class LotEngine<N> {
+
+	public interface Listener<N> {
+		public void accrued(TaxLot<N> lot);
+
+		public void disposed(TaxLot<N> lot);
+	}
+
+	private final LotMath<N> math;
+	private final LotStrategy lotStrategy;
+	private final boolean rewardAsIncome;
+	private final Listener<N> listener;
+
+	private final Map<String, LotPool<N>> allPendingLots = new HashMap<>();
+
+	public LotEngine(LotMath<N> math, LotStrategy lotStrategy, boolean rewardAsIncome, Listener<N> listener) {
+		this.math = math;
+		this.lotStrategy = lotStrategy;
+		this.rewardAsIncome = rewardAsIncome;
+		this.listener = listener;
+	}
+
+	private TaxLot<N> createUnknownLot(TaxEvent event, N amount) {
+		return new TaxLot<>(math, AccrualType.UNKNOWN,
+				new TaxEvent(event.getDateTime(), event.getAccount(), TaxEventType.UNKNOWN, event.getAsset(),
+						math.toBigDecimal(amount), BigDecimal.ZERO, event.getTransactionId(), event.getOriginFile(),
+						event.getOriginFileLineNumber()),
+				event.getDateTime(), amount, math.zero());
+	}
+
+	// Events must be sorted by date
+	public void process(List<TaxEvent> events) {
+		N zero = math.zero();
+
+		for (TaxEvent event : events) {
+			LotPool<N> pendingLots = allPendingLots.computeIfAbsent(event.getAsset(),
+					a -> lotStrategy.createPool(math));
+
+			switch (event.getType()) {
+
+			// Approach with option #1: amount is removed, but cost basis remains the same
+			// https://koinly.io/blog/deducting-crypto-trading-transfer-fees/
+			// If this results in removing an entire lot that has a cost basis, consider it
+			// a total loss (sold for $0)
+			case REMOVED:
+			case FEE:
+				N feeAmount = math.fromBigDecimal(event.getAmount());
+				while (math.signum(feeAmount) > 0) {
+					TaxLot<N> pickLot;
+					if (!pendingLots.isEmpty()) {
+						pickLot = pendingLots.pick(event.getDateTime(), feeAmount, zero);
+					} else {
+						pickLot = createUnknownLot(event, feeAmount);
+						listener.accrued(pickLot);
+					}
+
+					if (math.compare(feeAmount, pickLot.getAmount()) < 0) {
+						pickLot = pendingLots.split(pickLot, feeAmount, zero);
+					}
+
+					Verify.verify(math.compare(pickLot.getAmount(), feeAmount) <= 0);
+
+					if (math.signum(pickLot.getCostBasis()) > 0) {
+						pickLot.setSold(event, zero);
+					} else {
+						pickLot.setRemoved(event);
+					}
+
+					pendingLots.remove(pickLot);
+					listener.disposed(pickLot);
+
+					feeAmount = math.subtract(feeAmount, pickLot.getAmount());
+				}
+				break;
+
+			case SELL:
+				N sellAmount = math.fromBigDecimal(event.getAmount());
+				N sellProceeds = math.fromBigDecimal(event.getValue());
+				while (math.signum(sellAmount) > 0) {
+					TaxLot<N> sellLot;
+					if (!pendingLots.isEmpty()) {
+						sellLot = pendingLots.pick(event.getDateTime(), sellAmount, sellProceeds);
+					} else {
+						sellLot = createUnknownLot(event, sellAmount);
+						listener.accrued(sellLot);
+					}
+
+					if (math.compare(sellAmount, sellLot.getAmount()) < 0) {
+						sellLot = pendingLots.splitProportionally(sellLot, sellAmount);
+					}
+
+					Verify.verify(math.compare(sellLot.getAmount(), sellAmount) <= 0);
+
+					N proceeds;
+					if (math.compare(sellLot.getAmount(), sellAmount) < 0) {
+						proceeds = math.proportion(sellLot.getAmount(), sellAmount, sellProceeds);
+					} else {
+						proceeds = sellProceeds;
+					}
+					sellProceeds = math.subtract(sellProceeds, proceeds);
+
+					sellLot.setSold(event, proceeds);
+					pendingLots.remove(sellLot);
+					listener.disposed(sellLot);
+
+					sellAmount = math.subtract(sellAmount, sellLot.getAmount());
+				}
+				Verify.verify(math.signum(sellProceeds) == 0);
+				break;
+
+			case BUY:
+				TaxLot<N> buyLot = new TaxLot<>(math, AccrualType.BUY, event, event.getDateTime(),
+						math.fromBigDecimal(event.getAmount()), math.fromBigDecimal(event.getValue()));
+				pendingLots.add(buyLot);
+				listener.accrued(buyLot);
+				break;
+
+			case CARRYOVER:
+				TaxLot<N> carryoverLot = new TaxLot<>(math, AccrualType.CARRYOVER, event, event.getDateTime(),
+						math.fromBigDecimal(event.getAmount()), math.fromBigDecimal(event.getValue()));
+				pendingLots.add(carryoverLot);
+				listener.accrued(carryoverLot);
+				break;
+
+			case REWARD:
+				TaxLot<N> rewardLot;
+				if (rewardAsIncome) {
+					rewardLot = new TaxLot<>(math, AccrualType.INCOME, event, event.getDateTime(),
+							math.fromBigDecimal(event.getAmount()), math.fromBigDecimal(event.getValue()));
+				} else {
+					rewardLot = new TaxLot<>(math, AccrualType.BUY, event, event.getDateTime(),
+							math.fromBigDecimal(event.getAmount()), zero);
+				}
+				pendingLots.add(rewardLot);
+				listener.accrued(rewardLot);
+				break;
+
+			case DEPOSIT:
+			case WITHDRAW:
+			case UNKNOWN:
+				// Ignored
+				continue;
+			}
+		}
+	}
+}
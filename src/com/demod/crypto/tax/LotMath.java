@@ -0,0 +1,124 @@
+package com.demod.crypto.tax;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Comparator;
+
+// The number type lots are worked out in, compare orders by value
+public interface LotMath<N> extends Comparator<N> {
+
+	// The original math, results are exactly what they were before there was a choice
+	public static final LotMath<BigDecimal> BIG_DECIMAL = new LotMath<>() {
+		@Override
+		public BigDecimal add(BigDecimal a, BigDecimal b) {
+			return a.add(b);
+		}
+
+		@Override
+		public int compare(BigDecimal a, BigDecimal b) {
+			return a.compareTo(b);
+		}
+
+		@Override
+		public BigDecimal fromBigDecimal(BigDecimal value) {
+			return value;
+		}
+
+		@Override
+		public BigDecimal proportion(BigDecimal part, BigDecimal whole, BigDecimal value) {
+			return part.divide(whole, 18, RoundingMode.HALF_UP).multiply(value);
+		}
+
+		@Override
+		public BigDecimal ratio(BigDecimal numerator, BigDecimal denominator) {
+			return numerator.divide(denominator, 18, RoundingMode.HALF_UP);
+		}
+
+		@Override
+		public int signum(BigDecimal value) {
+			return value.signum();
+		}
+
+		@Override
+		public BigDecimal subtract(BigDecimal a, BigDecimal b) {
+			return a.subtract(b);
+		}
+
+		@Override
+		public BigDecimal toBigDecimal(BigDecimal value) {
+			return value;
+		}
+
+		@Override
+		public BigDecimal zero() {
+			return BigDecimal.ZERO;
+		}
+	};
+
+	// Everything held to 18 places, so splits do not keep growing the scale of cost basis and proceeds
+	// Same steps as BIG_DECIMAL, but a product is rounded to 18 places too, so the last place can differ
+	public static final LotMath<Fixed128> FIXED = new LotMath<>() {
+		@Override
+		public Fixed128 add(Fixed128 a, Fixed128 b) {
+			return a.add(b);
+		}
+
+		@Override
+		public int compare(Fixed128 a, Fixed128 b) {
+			return a.compareTo(b);
+		}
+
+		@Override
+		public Fixed128 fromBigDecimal(BigDecimal value) {
+			return Fixed128.fromBigDecimal(value);
+		}
+
+		@Override
+		public Fixed128 proportion(Fixed128 part, Fixed128 whole, Fixed128 value) {
+			return part.divide(whole).multiply(value);
+		}
+
+		@Override
+		public Fixed128 ratio(Fixed128 numerator, Fixed128 denominator) {
+			return numerator.divide(denominator);
+		}
+
+		@Override
+		public int signum(Fixed128 value) {
+			return value.signum();
+		}
+
+		@Override
+		public Fixed128 subtract(Fixed128 a, Fixed128 b) {
+			return a.subtract(b);
+		}
+
+		@Override
+		public BigDecimal toBigDecimal(Fixed128 value) {
+			return value.toBigDecimal().stripTrailingZeros();
+		}
+
+		@Override
+		public Fixed128 zero() {
+			return Fixed128.ZERO;
+		}
+	};
+
+	public N add(N a, N b);
+
+	public N fromBigDecimal(BigDecimal value);
+
+	// part / whole * value
+	public N proportion(N part, N whole, N value);
+
+	// To 18 places, rounded half up
+	public N ratio(N numerator, N denominator);
+
+	public int signum(N value);
+
+	public N subtract(N a, N b);
+
+	public BigDecimal toBigDecimal(N value);
+
+	public N zero();
+}
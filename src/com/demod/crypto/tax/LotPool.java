@@ -0,0 +1,62 @@
+package com.demod.crypto.tax;
+
+import java.time.LocalDateTime;
+
+// The pending lots of one asset, kept in the order a LotStrategy picks from them
+// Lots are keyed when they go in, so a lot must not change while it is in the pool, use split to take part of one
+public abstract class LotPool<N> {
+
+	// Ties are broken by the order lots were first added, the same as the old sorted list
+	private long nextSequence = 0;
+
+	public void add(TaxLot<N> lot) {
+		if (lot.getPoolSequence() == -1) {
+			lot.setPoolSequence(nextSequence++);
+		}
+		lot.setPool(this);
+		insert(lot);
+	}
+
+	protected abstract void delete(TaxLot<N> lot);
+
+	protected abstract void insert(TaxLot<N> lot);
+
+	public abstract boolean isEmpty();
+
+	// True if a lot's place in the pool depends on its amount or cost basis, and has to be keyed again after a split
+	protected abstract boolean isKeyedByPrice();
+
+	// Only called when the pool is not empty
+	public abstract TaxLot<N> pick(LocalDateTime date, N amount, N proceeds);
+
+	// Split off parts and unknown lots were never added, so they are skipped without a search
+	public boolean remove(TaxLot<N> lot) {
+		if (lot.getPool() != this) {
+			return false;
+		}
+		delete(lot);
+		lot.setPool(null);
+		return true;
+	}
+
+	// The lot stays in the pool with what is left
+	public TaxLot<N> split(TaxLot<N> lot, N splitAmount, N splitCostBasis) {
+		if (lot.getPool() != this || !isKeyedByPrice()) {
+			return lot.split(splitAmount, splitCostBasis);
+		}
+		delete(lot);
+		TaxLot<N> ret = lot.split(splitAmount, splitCostBasis);
+		insert(lot);
+		return ret;
+	}
+
+	public TaxLot<N> splitProportionally(TaxLot<N> lot, N splitAmount) {
+		if (lot.getPool() != this || !isKeyedByPrice()) {
+			return lot.splitProportionally(splitAmount);
+		}
+		delete(lot);
+		TaxLot<N> ret = lot.splitProportionally(splitAmount);
+		insert(lot);
+		return ret;
+	}
+}
@@ -1,39 +1,33 @@
 package com.demod.crypto.tax;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.LocalDateTime;
 import java.util.Comparator;
-import java.util.List;
-import java.util.Optional;
 
 public enum LotStrategy {
 	LIFO {// Last in, first out
 		@Override
-		public TaxLot pickLot(List<TaxLot> lots) {
-			return lots.stream().sorted(Comparator.<TaxLot, LocalDateTime>comparing(l -> l.getDateTime()).reversed())
-					.findFirst().get();
+		public <N> LotPool<N> createPool(LotMath<N> math) {
+			return new SortedLotPool<>(Comparator.<TaxLot<N>, LocalDateTime>comparing(l -> l.getDateTime()).reversed(),
+					false);
 		}
 	},
 	FIFO {// First in, first out
 		@Override
-		public TaxLot pickLot(List<TaxLot> lots) {
-			return lots.stream().sorted(Comparator.comparing(l -> l.getDateTime())).findFirst().get();
+		public <N> LotPool<N> createPool(LotMath<N> math) {
+			return new SortedLotPool<>(Comparator.<TaxLot<N>, LocalDateTime>comparing(l -> l.getDateTime()), false);
 		}
 	},
 	HIFO {// Highest cost first
 		@Override
-		public TaxLot pickLot(List<TaxLot> lots) {
-			return lots.stream()
-					.sorted(Comparator.<TaxLot, BigDecimal>comparing(l -> l.getEffectiveBuyPrice()).reversed())
-					.findFirst().get();
+		public <N> LotPool<N> createPool(LotMath<N> math) {
+			return new SortedLotPool<>(
+					Comparator.<TaxLot<N>, N>comparing(TaxLot::getEffectiveBuyPrice, math).reversed(), true);
 		}
 	},
 	LOFO {// Lowest cost first
 		@Override
-		public TaxLot pickLot(List<TaxLot> lots) {
-			return lots.stream().sorted(Comparator.<TaxLot, BigDecimal>comparing(l -> l.getEffectiveBuyPrice()))
-					.findFirst().get();
+		public <N> LotPool<N> createPool(LotMath<N> math) {
+			return new SortedLotPool<>(Comparator.<TaxLot<N>, N>comparing(TaxLot::getEffectiveBuyPrice, math), true);
 		}
 	},
 	LGUT {// Loss Gain Utilization (
@@ -45,67 +39,11 @@ public enum LotStrategy {
 			// - Long term gains, least gained first
 			// - Short term gains, least gained first
 		@Override
-		public TaxLot pickLot(List<TaxLot> lots, LocalDateTime date, BigDecimal amount, BigDecimal proceeds) {
-			BigDecimal effectiveSellPrice = proceeds.divide(amount, 18, RoundingMode.HALF_UP);
-
-			Optional<TaxLot> lossShortPick = lots.stream()
-					.filter(l -> effectiveSellPrice.compareTo(l.getEffectiveBuyPrice()) < 0
-							&& !TaxLot.isLongTerm(l.getDateTime(), date))
-					.sorted(Comparator.<TaxLot, BigDecimal>comparing(l -> l.getEffectiveBuyPrice()).reversed())
-					.findFirst();
-			if (lossShortPick.isPresent()) {
-				return lossShortPick.get();
-			}
-
-			Optional<TaxLot> lossLongPick = lots.stream()
-					.filter(l -> effectiveSellPrice.compareTo(l.getEffectiveBuyPrice()) < 0
-							&& TaxLot.isLongTerm(l.getDateTime(), date))
-					.sorted(Comparator.<TaxLot, BigDecimal>comparing(l -> l.getEffectiveBuyPrice()).reversed())
-					.findFirst();
-			if (lossLongPick.isPresent()) {
-				return lossLongPick.get();
-			}
-
-			Optional<TaxLot> noneShortPick = lots.stream()
-					.filter(l -> effectiveSellPrice.compareTo(l.getEffectiveBuyPrice()) == 0
-							&& !TaxLot.isLongTerm(l.getDateTime(), date))
-					.sorted(Comparator.<TaxLot, LocalDateTime>comparing(l -> l.getDateTime()).reversed()).findFirst();
-			if (noneShortPick.isPresent()) {
-				return noneShortPick.get();
-			}
-
-			Optional<TaxLot> noneLongPick = lots.stream()
-					.filter(l -> effectiveSellPrice.compareTo(l.getEffectiveBuyPrice()) == 0
-							&& TaxLot.isLongTerm(l.getDateTime(), date))
-					.sorted(Comparator.<TaxLot, LocalDateTime>comparing(l -> l.getDateTime()).reversed()).findFirst();
-			if (noneLongPick.isPresent()) {
-				return noneLongPick.get();
-			}
-
-			Optional<TaxLot> gainLongPick = lots.stream()
-					.filter(l -> effectiveSellPrice.compareTo(l.getEffectiveBuyPrice()) > 0
-							&& TaxLot.isLongTerm(l.getDateTime(), date))
-					.sorted(Comparator.<TaxLot, BigDecimal>comparing(l -> l.getEffectiveBuyPrice()).reversed())
-					.findFirst();
-			if (gainLongPick.isPresent()) {
-				return gainLongPick.get();
-			}
-
-			Optional<TaxLot> gainShortPick = lots.stream()
-					.filter(l -> effectiveSellPrice.compareTo(l.getEffectiveBuyPrice()) > 0
-							&& !TaxLot.isLongTerm(l.getDateTime(), date))
-					.sorted(Comparator.<TaxLot, BigDecimal>comparing(l -> l.getEffectiveBuyPrice()).reversed())
-					.findFirst();
-			return gainShortPick.get();
+		public <N> LotPool<N> createPool(LotMath<N> math) {
+			return new LgutLotPool<>(math);
 		}
-
 	};
 
-	protected TaxLot pickLot(List<TaxLot> lots) {
-		throw new UnsupportedOperationException();
-	}
-
-	public TaxLot pickLot(List<TaxLot> lots, LocalDateTime date, BigDecimal amount, BigDecimal proceeds) {
-		return pickLot(lots);
-	}
+	// One pool per asset
+	public abstract <N> LotPool<N> createPool(LotMath<N> math);
 }
@@ -0,0 +1,42 @@
+package com.demod.crypto.tax;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+// Picks the first lot in a fixed order, in O(log n)
+public class SortedLotPool<N> extends LotPool<N> {
+
+	protected final TreeSet<TaxLot<N>> lots;
+	private final boolean keyedByPrice;
+
+	public SortedLotPool(Comparator<TaxLot<N>> order, boolean keyedByPrice) {
+		lots = new TreeSet<>(order.thenComparingLong(TaxLot::getPoolSequence));
+		this.keyedByPrice = keyedByPrice;
+	}
+
+	@Override
+	protected void delete(TaxLot<N> lot) {
+		lots.remove(lot);
+	}
+
+	@Override
+	protected void insert(TaxLot<N> lot) {
+		lots.add(lot);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return lots.isEmpty();
+	}
+
+	@Override
+	protected boolean isKeyedByPrice() {
+		return keyedByPrice;
+	}
+
+	@Override
+	public TaxLot<N> pick(LocalDateTime date, N amount, N proceeds) {
+		return lots.first();
+	}
+}
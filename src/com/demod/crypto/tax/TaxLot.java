@@ -1,14 +1,12 @@
 package com.demod.crypto.tax;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Optional;
 
 import com.google.common.base.Preconditions;
 
-public class TaxLot {
+public class TaxLot<N> {
 	public static enum AccrualType {
 		BUY, INCOME, CARRYOVER, UNKNOWN
 	}
@@ -22,19 +20,36 @@ public class TaxLot {
 		return days > 363;
 	}
 
+	// Only for searching a LotPool, the effective buy price is the given price
+	static <N> TaxLot<N> probe(LotMath<N> math, N effectiveBuyPrice, LocalDateTime dateTime, long poolSequence) {
+		TaxLot<N> lot = new TaxLot<>(math, AccrualType.UNKNOWN, null, dateTime, effectiveBuyPrice, effectiveBuyPrice);
+		lot.effectiveBuyPrice = effectiveBuyPrice;
+		lot.poolSequence = poolSequence;
+		return lot;
+	}
+
+	private final LotMath<N> math;
 	private final AccrualType accrualType;
 	private final TaxEvent buyEvent;
 	private final LocalDateTime dateTime;
-	private BigDecimal amount;
-	private BigDecimal costBasis;
+	private N amount;
+	private N costBasis;
 
 	private boolean disposed = false;
 	private DisposeType disposeType;
 	private TaxEvent disposeEvent;
-	private BigDecimal proceeds;
-
-	public TaxLot(AccrualType accrualType, TaxEvent buyEvent, LocalDateTime dateTime, BigDecimal amount,
-			BigDecimal costBasis) {
+	private N proceeds;
+
+	// Worked out once, and again after a split
+	private N effectiveBuyPrice = null;
+	// Order the lot was first added to its LotPool
+	private long poolSequence = -1;
+	// The LotPool the lot is pending in, so removing a lot that is not there costs nothing
+	private LotPool<N> pool = null;
+
+	public TaxLot(LotMath<N> math, AccrualType accrualType, TaxEvent buyEvent, LocalDateTime dateTime, N amount,
+			N costBasis) {
+		this.math = math;
 		this.accrualType = accrualType;
 		this.buyEvent = buyEvent;
 		this.dateTime = dateTime;
@@ -46,7 +61,7 @@ public class TaxLot {
 		return accrualType;
 	}
 
-	public BigDecimal getAmount() {
+	public N getAmount() {
 		return amount;
 	}
 
@@ -54,7 +69,7 @@ public class TaxLot {
 		return buyEvent;
 	}
 
-	public BigDecimal getCostBasis() {
+	public N getCostBasis() {
 		return costBasis;
 	}
 
@@ -70,11 +85,22 @@ public class TaxLot {
 		return disposeType;
 	}
 
-	public BigDecimal getEffectiveBuyPrice() {
-		return costBasis.divide(amount, 18, RoundingMode.HALF_UP);
+	public N getEffectiveBuyPrice() {
+		if (effectiveBuyPrice == null) {
+			effectiveBuyPrice = math.ratio(costBasis, amount);
+		}
+		return effectiveBuyPrice;
+	}
+
+	LotPool<N> getPool() {
+		return pool;
 	}
 
-	public BigDecimal getProceeds() {
+	long getPoolSequence() {
+		return poolSequence;
+	}
+
+	public N getProceeds() {
 		return proceeds;
 	}
 
@@ -82,16 +108,24 @@ public class TaxLot {
 		return disposed;
 	}
 
+	void setPool(LotPool<N> pool) {
+		this.pool = pool;
+	}
+
+	void setPoolSequence(long poolSequence) {
+		this.poolSequence = poolSequence;
+	}
+
 	public void setRemoved(TaxEvent removalEvent) {
 		Preconditions.checkState(!disposed);
 		Preconditions.checkArgument(buyEvent.getAsset().equals(removalEvent.getAsset()));
 		disposed = true;
 		disposeType = DisposeType.REMOVED;
 		disposeEvent = removalEvent;
-		proceeds = BigDecimal.ZERO;
+		proceeds = math.zero();
 	}
 
-	public void setSold(TaxEvent sellEvent, BigDecimal sellProceeds) {
+	public void setSold(TaxEvent sellEvent, N sellProceeds) {
 		Preconditions.checkState(!disposed);
 		Preconditions.checkArgument(buyEvent.getAsset().equals(sellEvent.getAsset()));
 		disposed = true;
@@ -104,26 +138,28 @@ public class TaxLot {
 		proceeds = sellProceeds;
 	}
 
-	public TaxLot split(BigDecimal splitAmount, BigDecimal splitCostBasis) {
+	public TaxLot<N> split(N splitAmount, N splitCostBasis) {
 		Preconditions.checkState(!disposed);
-		Preconditions.checkArgument(amount.compareTo(splitAmount) > 0);
-		Preconditions.checkArgument(costBasis.compareTo(splitCostBasis) >= 0, this);
-		amount = amount.subtract(splitAmount);
-		costBasis = costBasis.subtract(splitCostBasis);
-		return new TaxLot(accrualType, buyEvent, dateTime, splitAmount, splitCostBasis);
+		Preconditions.checkArgument(math.compare(amount, splitAmount) > 0);
+		Preconditions.checkArgument(math.compare(costBasis, splitCostBasis) >= 0, this);
+		amount = math.subtract(amount, splitAmount);
+		costBasis = math.subtract(costBasis, splitCostBasis);
+		effectiveBuyPrice = null;
+		return new TaxLot<>(math, accrualType, buyEvent, dateTime, splitAmount, splitCostBasis);
 	}
 
-	public TaxLot splitProportionally(BigDecimal splitAmount) {
-		BigDecimal splitCostBasis = splitAmount.divide(amount, 18, RoundingMode.HALF_UP).multiply(costBasis);
+	public TaxLot<N> splitProportionally(N splitAmount) {
+		N splitCostBasis = math.proportion(splitAmount, amount, costBasis);
 		return split(splitAmount, splitCostBasis);
 	}
 
 	@Override
 	public String toString() {
 		return "TaxLot [acquireType=" + accrualType.name() + ", dateTime=" + dateTime + ", amount="
-				+ amount.toPlainString() + ", costBasis=$" + costBasis.toPlainString() + ", buyId=" + buyEvent.getId()
+				+ math.toBigDecimal(amount).toPlainString() + ", costBasis=$"
+				+ math.toBigDecimal(costBasis).toPlainString() + ", buyId=" + buyEvent.getId()
 				+ ", disposeType=" + Optional.ofNullable(disposeType).map(DisposeType::name).orElse("") + ", disposeId="
 				+ Optional.ofNullable(disposeEvent).map(TaxEvent::getId).orElse("") + ", proceeds=$"
-				+ Optional.ofNullable(proceeds).map(BigDecimal::toPlainString).orElse("") + "]";
+				+ Optional.ofNullable(proceeds).map(p -> math.toBigDecimal(p).toPlainString()).orElse("") + "]";
 	}
 }
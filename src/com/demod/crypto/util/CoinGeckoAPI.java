@@ -4,48 +4,160 @@ import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.URL;
-import java.nio.file.Files;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.google.common.base.Charsets;
-import com.google.common.base.Preconditions;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.common.util.concurrent.Uninterruptibles;
 
-public class CoinGeckoAPI {
+// Safe to share between threads, the rate limit is shared by every caller
+// Concurrent requests for the same coin and day (or coin and year for range fills) wait on one fetch
+public class CoinGeckoAPI implements PriceProvider {
+	// One coin and currency of the cache, with its place in the price table found once
+	class CachedPrices {
+		private final String cacheId;
+		private final PriceTable table;
+		private final int coin;
+		private final PriceLog log;
+
+		private CachedPrices(String cacheId) {
+			this.cacheId = cacheId;
+			table = getPriceTable();
+			coin = table != null ? table.indexOf(cacheId) : -1;
+			log = getPriceLog();
+			if (table == null) {
+				loadSnapshot(log);
+			}
+		}
+
+		// Null if not cached, empty if CoinGecko has no price
+		public Optional<BigDecimal> get(LocalDate date) {
+			if (coin != -1) {
+				long epochDay = date.toEpochDay();
+				long unscaled = table.getUnscaled(coin, epochDay);
+				if (unscaled == PriceTable.MISSING) {
+					return Optional.empty();
+				} else if (unscaled == PriceTable.OVERFLOW) {
+					loadSnapshot(log);
+				} else if (unscaled != PriceTable.UNKNOWN) {
+					return Optional.of(BigDecimal.valueOf(unscaled, table.getScale(coin, epochDay)));
+				}
+			}
+			String dateStr = fmtDate.format(date);
+			if (log.has(cacheId, dateStr)) {
+				return Optional.ofNullable(log.get(cacheId, dateStr));
+			}
+			return null;
+		}
+
+		// Without making the price
+		public boolean has(LocalDate date) {
+			if (coin != -1 && table.getUnscaled(coin, date.toEpochDay()) != PriceTable.UNKNOWN) {
+				return true;
+			}
+			return log.has(cacheId, fmtDate.format(date));
+		}
+	}
+
 	public static final long API_RATE_MS = 60000L / 10L + 100L; // 10 per minute, plus 100ms padding
 
+	// A range fill costs one call, the same as a single day, but downloads the whole year
+	public static final int BULK_FILL_MIN_MISSING_DAYS = 7;
+
+	// Every history response has the price in all of these, the range endpoint only has one per call
+	public static final String DEFAULT_CURRENCY = "usd";
+	public static final String[] CURRENCIES = { "usd", "aed", "ars", "aud", "bdt", "bhd", "bmd", "brl", "cad", "chf",
+			"clp", "cny", "czk", "dkk", "eur", "gbp", "hkd", "huf", "idr", "ils", "inr", "jpy", "krw", "kwd", "lkr",
+			"mmk", "mxn", "myr", "ngn", "nok", "nzd", "php", "pkr", "pln", "rub", "sar", "sek", "sgd", "thb", "try",
+			"twd", "uah", "vnd", "zar" };
+
 	private static final DateTimeFormatter fmtDate = DateTimeFormatter.ofPattern("dd-MM-yyyy");
 
-	private static volatile long lastApiMillis = System.currentTimeMillis() - API_RATE_MS;
+	private static CoinGeckoAPI defaultInstance = null;
+
+	// Uses the files in the data folder, the api url can be pointed at CoinGeckoStandIn for testing
+	public static synchronized CoinGeckoAPI getDefault() {
+		if (defaultInstance == null) {
+			try {
+				defaultInstance = new CoinGeckoAPI(
+						System.getProperty("coingecko.api.url", "https://api.coingecko.com/api/v3"),
+						new File("data"));
+			} catch (JSONException | IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		return defaultInstance;
+	}
+
+	// Usd prices keep the plain coin id, so caches from before other currencies were saved still work
+	static String getCacheId(String id, String currency) {
+		return currency.equals(DEFAULT_CURRENCY) ? id : id + "@" + currency;
+	}
+
+	// Null if nothing has used CoinGecko yet
+	public static synchronized CoinGeckoAPI getDefaultIfLoaded() {
+		return defaultInstance;
+	}
+
+	public static void main(String[] args) {
+		System.out.println(getDefault().getHistoricalPrice("ETH", LocalDate.of(2020, 1, 1)));
+		System.out.println(getDefault().getHistoricalPrice("ETH", LocalDate.of(2020, 1, 1), "eur"));
+	}
+
+	private final String apiUrl;
+	private final SymbolIndex symbolIndex;
+	private final File dataFolder;
+
+	// Both loaded on first use, the log is only needed when the table is missing a price
+	private volatile PriceTable priceTable = null;
+	private volatile boolean priceTableChecked = false;
+	private volatile PriceLog priceLog = null;
+
+	private final RateLimiter rateLimiter = RateLimiter.create(1000.0 / API_RATE_MS);
+	private final AtomicLong requestCount = new AtomicLong();
 
-	private static Multimap<String, String> symbolToID = null;
+	private final ConcurrentHashMap<String, CompletableFuture<BigDecimal>> priceFetches = new ConcurrentHashMap<>();
+	// Finished range fills stay in the map, so a coin-year is only checked once (failed ones are removed)
+	private final ConcurrentHashMap<String, CompletableFuture<Integer>> rangeFills = new ConcurrentHashMap<>();
 
-	private static JSONObject historicalPriceCacheJson = null;
+	private final Set<String> failedSymbols = Collections.synchronizedSet(new LinkedHashSet<>());
 
-	public static LinkedHashSet<String> failedSymbols = new LinkedHashSet<>();
+	public CoinGeckoAPI(String apiUrl, File dataFolder) throws IOException {
+		this.apiUrl = apiUrl;
+		this.dataFolder = dataFolder;
+		symbolIndex = SymbolIndex.load(dataFolder);
+	}
 
-	private static synchronized JSONObject callApi(String urlStr) {
+	private JSONObject callApi(String urlStr) {
 		int backoffSeconds = 90;
 		while (true) {
 			try {
-				long currentMillis = System.currentTimeMillis();
-				long needToWait = lastApiMillis + API_RATE_MS - currentMillis;
-				if (needToWait >= 5) {
-					Uninterruptibles.sleepUninterruptibly(needToWait, TimeUnit.MILLISECONDS);
-				}
-				lastApiMillis = System.currentTimeMillis();
-
+				rateLimiter.acquire();
+				requestCount.incrementAndGet();
 				return new JSONObject(Resources.toString(new URL(urlStr), Charsets.UTF_8));
 			} catch (JSONException | IOException e) {
 				System.err.println("URL: " + urlStr);
@@ -59,69 +171,199 @@ public class CoinGeckoAPI {
 		}
 	}
 
-	public static BigDecimal getHistoricalPrice(String symbol, LocalDate date) {
-		String id = getSymbolId(symbol);
+	// One history call, without checking the cache or doing a range fill
+	// Every currency in the response is saved, so other currencies for this day will not need a call
+	BigDecimal fetchHistoricalPrice(String id, LocalDate date, String currency) {
 		String dateStr = fmtDate.format(date);
+		return singleFlight(priceFetches, getCacheId(id, currency) + " " + dateStr, true, () -> {
+			Optional<BigDecimal> cached = getCached(id, date, currency);
+			if (cached != null) {
+				return cached.orElse(null);
+			}
+			Map<String, BigDecimal> currencyPrices = getHistoricalPrice_Fetch(id, dateStr);
+			Map<String, Map<String, BigDecimal>> idDatePrices = new HashMap<>();
+			currencyPrices.forEach((c, p) -> idDatePrices.put(getCacheId(id, c), Collections.singletonMap(dateStr, p)));
+			BigDecimal price = currencyPrices.get(currency);
+			if (price == null) {
+				idDatePrices.put(getCacheId(id, currency), Collections.singletonMap(dateStr, null));
+			}
+			try {
+				getPriceLog().append(idDatePrices);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+				return null;
+			}
+			return price;
+		});
+	}
 
+	public int fillHistoricalPrices(String symbol, LocalDate first, LocalDate last, String currency) {
+		String id = getSymbolId(symbol);
 		if (id == null) {
-			return null;
+			return 0;
 		}
+		return fillHistoricalPrices_Range(id, first, last, currency);
+	}
+
+	// The history endpoint gives the price at 00:00 UTC, so the first point of each day is used
+	// Days without a point are saved as missing, the same as the history endpoint returning nothing
+	int fillHistoricalPrices_Range(String id, LocalDate first, LocalDate last, String currency) {
+		long fromSeconds = first.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+		long toSeconds = last.plusDays(1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+		String urlStr = apiUrl + "/coins/" + id + "/market_chart/range?vs_currency=" + currency + "&from="
+				+ fromSeconds + "&to=" + toSeconds;
+		System.out.println("CoinGecko range fill " + id + " " + currency + " " + first + " to " + last);
+		JSONObject json = callApi(urlStr);
 
-		if (historicalPriceCacheJson == null) {
-			File file = new File("data/coingecko-historical-price-cache.json");
-			if (file.exists()) {
-				try {
-					historicalPriceCacheJson = new JSONObject(Files.readString(file.toPath()));
-				} catch (JSONException | IOException e) {
-					e.printStackTrace();
-					System.exit(-1);
-					return null;
+		Map<LocalDate, BigDecimal> dayPrices = new HashMap<>();
+		try {
+			JSONArray pricesJson = json.optJSONArray("prices");
+			if (pricesJson != null) {
+				for (int i = 0; i < pricesJson.length(); i++) {
+					JSONArray pointJson = pricesJson.getJSONArray(i);
+					LocalDate day = Instant.ofEpochMilli(pointJson.getLong(0)).atZone(ZoneOffset.UTC).toLocalDate();
+					if (!pointJson.isNull(1)) {
+						dayPrices.putIfAbsent(day, pointJson.getBigDecimal(1));
+					}
 				}
-			} else {
-				historicalPriceCacheJson = new JSONObject();
 			}
+		} catch (JSONException e) {
+			System.err.println("Url: " + urlStr);
+			System.err.println("Json: " + json.toString());
+			throw e;
 		}
 
-		if (historicalPriceCacheJson.has(id)) {
-			JSONObject datesJson = historicalPriceCacheJson.getJSONObject(id);
-			if (datesJson.has(dateStr)) {
-				return datesJson.optBigDecimal(dateStr, null);
+		Map<String, BigDecimal> prices = new LinkedHashMap<>();
+		CachedPrices cached = getCachedPrices(id, currency);
+		first.datesUntil(last.plusDays(1)).forEach(day -> {
+			if (!cached.has(day)) {
+				prices.put(fmtDate.format(day), dayPrices.get(day));
 			}
+		});
+		try {
+			getPriceLog().append(getCacheId(id, currency), prices);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
 		}
+		return (int) prices.values().stream().filter(p -> p != null).count();
+	}
 
-		BigDecimal price = getHistoricalPrice_Fetch(id, dateStr);
+	@Override
+	public String getName() {
+		return "CoinGecko";
+	}
+
+	@Override
+	public BigDecimal getPrice(String symbol, LocalDate date) {
+		return hasSymbol(symbol) ? getHistoricalPrice(symbol, date) : null;
+	}
+
+	// Past prices do not change, only which coin a symbol points to
+	@Override
+	public String getVersion() {
+		return symbolIndex.getSourcesStamp();
+	}
 
-		JSONObject datesJson;
-		if (historicalPriceCacheJson.has(id)) {
-			datesJson = historicalPriceCacheJson.getJSONObject(id);
-		} else {
-			historicalPriceCacheJson.put(id, datesJson = new JSONObject());
+	// Tier for a PriceChain that reports in another currency, sharing this cache and rate limit
+	public PriceProvider forCurrency(String currency) {
+		if (currency.equals(DEFAULT_CURRENCY)) {
+			return this;
 		}
-		if (price != null) {
-			datesJson.put(dateStr, price);
-		} else {
-			datesJson.put(dateStr, false);
+		return new PriceProvider() {
+			@Override
+			public String getName() {
+				return CoinGeckoAPI.this.getName();
+			}
+
+			@Override
+			public BigDecimal getPrice(String symbol, LocalDate date) {
+				return hasSymbol(symbol) ? getHistoricalPrice(symbol, date, currency) : null;
+			}
+
+			@Override
+			public String getVersion() {
+				return CoinGeckoAPI.this.getVersion();
+			}
+
+			@Override
+			public boolean hasSymbol(String symbol) {
+				return CoinGeckoAPI.this.hasSymbol(symbol);
+			}
+
+			@Override
+			public boolean isRemote() {
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public boolean isRemote() {
+		return true;
+	}
+
+	// Including retries
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public List<String> getFailedSymbols() {
+		synchronized (failedSymbols) {
+			return ImmutableList.copyOf(failedSymbols);
 		}
-		File file = new File("data/coingecko-historical-price-cache.json");
-		try {
-			Files.writeString(file.toPath(), historicalPriceCacheJson.toString(2));
-		} catch (JSONException | IOException e) {
-			e.printStackTrace();
-			System.exit(-1);
+	}
+
+	public BigDecimal getHistoricalPrice(String symbol, LocalDate date) {
+		return getHistoricalPrice(symbol, date, DEFAULT_CURRENCY);
+	}
+
+	public BigDecimal getHistoricalPrice(String symbol, LocalDate date, String currency) {
+		String id = getSymbolId(symbol);
+
+		if (id == null) {
 			return null;
 		}
 
-		return price;
+		Optional<BigDecimal> cached = getCached(id, date, currency);
+		if (cached != null) {
+			return cached.orElse(null);
+		}
+
+		LocalDate first = LocalDate.of(date.getYear(), 1, 1);
+		LocalDate last = Collections.min(
+				Arrays.asList(LocalDate.of(date.getYear(), 12, 31), LocalDate.now(ZoneOffset.UTC).minusDays(1)));
+		if (!last.isBefore(first)) {
+			singleFlight(rangeFills, getCacheId(id, currency) + " " + date.getYear(), false, () -> {
+				if (isRangeFillWorthwhile(id, first, last, currency)) {
+					return fillHistoricalPrices_Range(id, first, last, currency);
+				}
+				return 0;
+			});
+			cached = getCached(id, date, currency);
+			if (cached != null) {
+				return cached.orElse(null);
+			}
+		}
+
+		return fetchHistoricalPrice(id, date, currency);
 	}
 
-	private static BigDecimal getHistoricalPrice_Fetch(String id, String dateStr) {
-		String urlStr = "https://api.coingecko.com/api/v3/coins/" + id + "/history?date=" + dateStr;
+	// Price in every currency, empty if CoinGecko has no market data for the day
+	private Map<String, BigDecimal> getHistoricalPrice_Fetch(String id, String dateStr) {
+		String urlStr = apiUrl + "/coins/" + id + "/history?date=" + dateStr;
 		JSONObject json = callApi(urlStr);
 		try {
+			Map<String, BigDecimal> currencyPrices = new HashMap<>();
 			if (!json.has("market_data")) {
-				return null;
+				return currencyPrices;
+			}
+			JSONObject currentPriceJson = json.getJSONObject("market_data").getJSONObject("current_price");
+			for (String currency : currentPriceJson.keySet()) {
+				currencyPrices.put(currency, currentPriceJson.getBigDecimal(currency));
 			}
-			return json.getJSONObject("market_data").getJSONObject("current_price").getBigDecimal("usd");
+			return currencyPrices;
 		} catch (JSONException e) {
 			System.err.println("Url: " + urlStr);
 			System.err.println("Json: " + json.toString());
@@ -129,12 +371,8 @@ public class CoinGeckoAPI {
 		}
 	}
 
-	private static synchronized String getSymbolId(String symbol) {
-		if (symbolToID == null) {
-			loadSymbolData();
-		}
-
-		Collection<String> ids = symbolToID.get(symbol.toUpperCase());
+	String getSymbolId(String symbol) {
+		List<String> ids = symbolIndex.getIds(symbol);
 		if (ids.isEmpty()) {
 //			throw new IllegalArgumentException("Symbol " + symbol + " has no CoinGecko id!");
 			failedSymbols.add(symbol);
@@ -149,62 +387,112 @@ public class CoinGeckoAPI {
 		return ids.iterator().next();
 	}
 
-	public static boolean hasSymbol(String symbol) {
-		if (symbolToID == null) {
-			loadSymbolData();
-		}
+	@Override
+	public boolean hasSymbol(String symbol) {
+		return symbolIndex.getIds(symbol).size() > 0;
+	}
+
+	// Candidates for symbols that are missing or ambiguous
+	public List<String> getSymbolIds(String symbol) {
+		return symbolIndex.getIds(symbol);
+	}
+
+	// Same rule for the price plan and for lookups, so the plan shows the calls that will be made
+	boolean isRangeFillWorthwhile(String id, LocalDate first, LocalDate last, String currency) {
+		CachedPrices cached = getCachedPrices(id, currency);
+		long missingDays = first.datesUntil(last.plusDays(1)).filter(d -> !cached.has(d)).count();
+		return missingDays >= BULK_FILL_MIN_MISSING_DAYS;
+	}
+
+	// Look this up once per coin when checking many days
+	CachedPrices getCachedPrices(String id, String currency) {
+		return new CachedPrices(getCacheId(id, currency));
+	}
 
-		return symbolToID.get(symbol.toUpperCase()).size() > 0;
+	// Null if not cached, empty if CoinGecko has no price
+	private Optional<BigDecimal> getCached(String id, LocalDate date, String currency) {
+		return getCachedPrices(id, currency).get(date);
 	}
 
-	private static void loadSymbolData() {
-		System.out.println("Loading CoinGecko Symbol Data...");// XXX
+	// The snapshot is only needed when the table cannot answer for it
+	private void loadSnapshot(PriceLog log) {
 		try {
-			ArrayListMultimap<String, String> map = ArrayListMultimap.create();
-
-			{
-				File file = new File("data/coingecko-coins-list.json");
-				Preconditions.checkState(file.exists());
-				JSONArray json = new JSONArray(Files.readString(file.toPath()));
-				for (int i = 0; i < json.length(); i++) {
-					JSONObject coinJson = json.getJSONObject(i);
-					String id = coinJson.getString("id");
-					String symbol = coinJson.getString("symbol");
-					map.put(symbol.toUpperCase(), id);
-				}
-			}
-			{
-				File file = new File("data/coingecko-coins-top250.json");
-				Preconditions.checkState(file.exists());
-				JSONArray json = new JSONArray(Files.readString(file.toPath()));
-				for (int i = json.length() - 1; i >= 0; i--) {
-					JSONObject coinJson = json.getJSONObject(i);
-					String id = coinJson.getString("id");
-					String symbol = coinJson.getString("symbol");
-					map.removeAll(symbol.toUpperCase());
-					map.put(symbol.toUpperCase(), id);
+			log.loadSnapshot();
+		} catch (JSONException | IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	private PriceLog getPriceLog() {
+		if (priceLog == null) {
+			synchronized (this) {
+				if (priceLog == null) {
+					try {
+						priceLog = new PriceLog(getSnapshotFile(),
+								new File(dataFolder, "coingecko-historical-price-log.ndjson"), getTableFile());
+					} catch (JSONException | IOException e) {
+						e.printStackTrace();
+						System.exit(-1);
+					}
 				}
 			}
-			{
-				File file = new File("data/coingecko-symbol-pref.json");
-				Preconditions.checkState(file.exists());
-				JSONObject json = new JSONObject(Files.readString(file.toPath()));
-				for (String symbol : json.keySet()) {
-					String id = json.optString(symbol, null);
-					map.removeAll(symbol.toUpperCase());
-					map.put(symbol.toUpperCase(), id);
+		}
+		return priceLog;
+	}
+
+	// Built from the price log the first time, if it is missing or out of date
+	private PriceTable getPriceTable() {
+		if (!priceTableChecked) {
+			synchronized (this) {
+				if (!priceTableChecked) {
+					PriceTable table = PriceTable.open(getTableFile(), getSnapshotFile());
+					if (table == null) {
+						System.out.println("Building CoinGecko price table...");
+						try {
+							getPriceLog().compact();
+						} catch (IOException e) {
+							e.printStackTrace();
+							System.exit(-1);
+						}
+						table = PriceTable.open(getTableFile(), getSnapshotFile());
+					}
+					priceTable = table;
+					priceTableChecked = true;
 				}
 			}
+		}
+		return priceTable;
+	}
 
-			symbolToID = map;
+	private File getSnapshotFile() {
+		return new File(dataFolder, "coingecko-historical-price-cache.json");
+	}
 
-		} catch (JSONException | IOException e) {
-			e.printStackTrace();
-			System.exit(-1);
-		}
+	private File getTableFile() {
+		return new File(dataFolder, "coingecko-price-table.bin");
 	}
 
-	public static void main(String[] args) {
-		System.out.println(getHistoricalPrice("ETH", LocalDate.of(2020, 1, 1)));
+	// The first caller for a key runs the fetch, everyone else waits for its result
+	// A failed fetch is always removed, so the next caller tries again instead of getting the old failure
+	private <T> T singleFlight(ConcurrentHashMap<String, CompletableFuture<T>> flights, String key,
+			boolean removeWhenDone, Supplier<T> fetch) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		CompletableFuture<T> existing = flights.putIfAbsent(key, future);
+		if (existing != null) {
+			return existing.join();
+		}
+		try {
+			T result = fetch.get();
+			future.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			if (removeWhenDone || future.isCompletedExceptionally()) {
+				flights.remove(key, future);
+			}
+		}
 	}
 }
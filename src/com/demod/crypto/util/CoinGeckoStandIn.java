@@ -0,0 +1,127 @@
+package com.demod.crypto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Made up prices for the CoinGecko endpoints we use, so price fetching can be tested offline
+// Run with -Dcoingecko.api.url=http://localhost:(port)/api/v3
+public class CoinGeckoStandIn {
+
+	private static final DateTimeFormatter fmtDate = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+
+	// Made up exchange rates, history responses have all of them like the real api
+	private static final Map<String, BigDecimal> currencyRates = new LinkedHashMap<>();
+	static {
+		currencyRates.put("usd", BigDecimal.ONE);
+		currencyRates.put("eur", new BigDecimal("0.9"));
+		currencyRates.put("gbp", new BigDecimal("0.8"));
+		currencyRates.put("cad", new BigDecimal("1.3"));
+	}
+
+	public static final AtomicInteger requestCount = new AtomicInteger();
+
+	private static void handle(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+
+		Map<String, String> query = new HashMap<>();
+		String rawQuery = exchange.getRequestURI().getRawQuery();
+		if (rawQuery != null) {
+			for (String param : rawQuery.split("&")) {
+				int split = param.indexOf('=');
+				if (split != -1) {
+					query.put(param.substring(0, split), param.substring(split + 1));
+				}
+			}
+		}
+
+		// /api/v3/coins/(id)/history or /api/v3/coins/(id)/market_chart/range
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		String id = path.length > 4 ? path[4] : "";
+		String endpoint = path.length > 5 ? path[5] : "";
+
+		JSONObject json = new JSONObject();
+		if (endpoint.equals("history")) {
+			LocalDate day = LocalDate.parse(query.get("date"), fmtDate);
+			json.put("id", id);
+			if (price(id, day) != null) {
+				JSONObject currentPriceJson = new JSONObject();
+				for (String currency : currencyRates.keySet()) {
+					currentPriceJson.put(currency, price(id, day, currency));
+				}
+				json.put("market_data", new JSONObject().put("current_price", currentPriceJson));
+			}
+
+		} else if (endpoint.equals("market_chart")) {
+			long from = Long.parseLong(query.get("from"));
+			long to = Long.parseLong(query.get("to"));
+			String currency = query.getOrDefault("vs_currency", "usd");
+			JSONArray pricesJson = new JSONArray();
+			LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(from, 86400L));
+			while (day.atStartOfDay(ZoneOffset.UTC).toEpochSecond() <= to) {
+				long seconds = day.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+				BigDecimal price = price(id, day, currency);
+				if (seconds >= from && price != null) {
+					pricesJson.put(new JSONArray().put(seconds * 1000L).put(price));
+				}
+				day = day.plusDays(1);
+			}
+			json.put("prices", pricesJson);
+
+		} else {
+			json.put("error", "Unknown endpoint");
+		}
+
+		System.out.println(exchange.getRequestURI());
+		byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+		start(port);
+		System.out.println("CoinGecko stand-in at http://localhost:" + port + "/api/v3");
+	}
+
+	// Same price for a coin and day from both endpoints, with a few missing days
+	public static BigDecimal price(String id, LocalDate day) {
+		int seed = Math.abs(id.hashCode() % 1000);
+		if ((seed + day.toEpochDay()) % 37 == 0) {
+			return null;
+		}
+		return BigDecimal.valueOf(seed + 1).add(BigDecimal.valueOf(day.getDayOfYear(), 2));
+	}
+
+	// Null for currencies the stand-in does not have
+	public static BigDecimal price(String id, LocalDate day, String currency) {
+		BigDecimal price = price(id, day);
+		BigDecimal rate = currencyRates.get(currency);
+		return price != null && rate != null ? price.multiply(rate) : null;
+	}
+
+	public static HttpServer start(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/api/v3/coins/", CoinGeckoStandIn::handle);
+		server.start();
+		return server;
+	}
+}
@@ -28,6 +28,7 @@ public class ConsoleArgs {
 		}
 		boolean pickedValue = getLastPick(program, label, JSONObject::optBoolean, defaultValue);
 		System.out.print("Please Enter " + label + " [" + pickedValue + "]: ");
+		System.out.flush();
 		String input = scanner.nextLine();
 		if (!input.isBlank()) {
 			pickedValue = Boolean.parseBoolean(input);
@@ -42,6 +43,7 @@ public class ConsoleArgs {
 		}
 		int pickedValue = getLastPick(program, label, JSONObject::optInt, defaultValue);
 		System.out.print("Please Enter " + label + " [" + pickedValue + "]: ");
+		System.out.flush();
 		String input = scanner.nextLine();
 		if (!input.isBlank()) {
 			pickedValue = Integer.parseInt(input);
@@ -58,6 +60,7 @@ public class ConsoleArgs {
 		String pickedValue = getLastPick(program, label, JSONObject::optString, defaultValue);
 		System.out.println(label + " Choices: " + Arrays.toString(choices));
 		System.out.print("Please Enter " + label + " [" + pickedValue + "]: ");
+		System.out.flush();
 		String input = scanner.nextLine();
 		if (!input.isBlank()) {
 			pickedValue = input;
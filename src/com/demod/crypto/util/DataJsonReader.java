@@ -0,0 +1,151 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+// Streams the transactions out of a data.json file one at a time, so the whole file is never in memory
+// Only the listed transaction fields are kept, the rest (such as the input hex) are skipped while parsing
+// Every iteration reads the file again from the start
+public class DataJsonReader implements Iterable<JSONObject> {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final File file;
+	private final Set<String> fields;
+
+	private int count = -1;
+
+	public DataJsonReader(File file, Set<String> fields) {
+		this.file = file;
+		this.fields = fields;
+	}
+
+	@Override
+	public Iterator<JSONObject> iterator() {
+		try {
+			JsonParser parser = jsonFactory.createParser(file);
+			if (!seekTransactions(parser)) {
+				parser.close();
+				count = 0;
+				return Collections.emptyIterator();
+			}
+			return new Iterator<JSONObject>() {
+				private JSONObject next = readNext();
+				private int read = 0;
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public JSONObject next() {
+					if (next == null) {
+						throw new NoSuchElementException();
+					}
+					JSONObject ret = next;
+					read++;
+					next = readNext();
+					if (next == null) {
+						count = read;
+					}
+					return ret;
+				}
+
+				private JSONObject readNext() {
+					try {
+						if (parser.nextToken() != JsonToken.START_OBJECT) {
+							parser.close();
+							return null;
+						}
+						return readObject(parser, fields);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			};
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Object readValue(JsonParser parser) throws IOException {
+		switch (parser.currentToken()) {
+		case START_OBJECT:
+			return readObject(parser, null);
+		case START_ARRAY:
+			JSONArray json = new JSONArray();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				json.put(readValue(parser));
+			}
+			return json;
+		case VALUE_STRING:
+			return parser.getText();
+		case VALUE_NUMBER_INT:
+			return parser.getNumberValue();
+		case VALUE_NUMBER_FLOAT:
+			return parser.getDecimalValue();
+		case VALUE_TRUE:
+			return true;
+		case VALUE_FALSE:
+			return false;
+		default:
+			return JSONObject.NULL;
+		}
+	}
+
+	// Null keep means keep every field
+	private JSONObject readObject(JsonParser parser, Set<String> keep) throws IOException {
+		JSONObject json = new JSONObject();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			if (keep != null && !keep.contains(name)) {
+				parser.skipChildren();
+				continue;
+			}
+			json.put(name, readValue(parser));
+		}
+		return json;
+	}
+
+	// Leaves the parser inside the transactions array, false if there is none
+	private boolean seekTransactions(JsonParser parser) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			return false;
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (name.equals("transactions") && token == JsonToken.START_ARRAY) {
+				return true;
+			}
+			parser.skipChildren();
+		}
+		return false;
+	}
+
+	// Reads the file once to count, if it has not been read all the way through yet
+	public int size() {
+		if (count == -1) {
+			int read = 0;
+			for (Iterator<JSONObject> iter = iterator(); iter.hasNext(); iter.next()) {
+				read++;
+			}
+			count = read;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,110 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+// Daily prices from csv files, one per coin, named (SYMBOL).csv
+// The first column is the date, the price is taken from a Price or Open column, otherwise the second column
+public class LocalPriceFiles implements PriceProvider {
+
+	private static final DateTimeFormatter FMT_DATE_SLASH = DateTimeFormatter.ofPattern("M/d/yyyy");
+
+	private static LocalDate parseDate(String cell) {
+		String dateStr = cell.trim().replace("\"", "").split("[ T]")[0];
+		try {
+			return LocalDate.parse(dateStr);
+		} catch (DateTimeParseException e) {
+			return LocalDate.parse(dateStr, FMT_DATE_SLASH);
+		}
+	}
+
+	private final File folder;
+
+	private final ConcurrentHashMap<String, Map<LocalDate, BigDecimal>> symbolPrices = new ConcurrentHashMap<>();
+
+	public LocalPriceFiles(File folder) {
+		this.folder = folder;
+	}
+
+	@Override
+	public String getName() {
+		return "Local Files";
+	}
+
+	@Override
+	public String getVersion() {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return "";
+		}
+		Arrays.sort(files);
+		StringBuilder version = new StringBuilder();
+		for (File file : files) {
+			version.append(file.getName()).append('@').append(file.length()).append('@').append(file.lastModified())
+					.append(';');
+		}
+		return version.toString();
+	}
+
+	@Override
+	public BigDecimal getPrice(String symbol, LocalDate date) {
+		return symbolPrices.computeIfAbsent(symbol.toUpperCase(), this::load).get(date);
+	}
+
+	@Override
+	public boolean hasSymbol(String symbol) {
+		return new File(folder, symbol.toUpperCase() + ".csv").exists();
+	}
+
+	private Map<LocalDate, BigDecimal> load(String symbol) {
+		File file = new File(folder, symbol + ".csv");
+		if (!file.exists()) {
+			return Collections.emptyMap();
+		}
+		try {
+			List<String> lines = Files.readAllLines(file.toPath());
+			lines.removeIf(String::isBlank);
+			if (lines.size() < 2) {
+				System.out.println("WARNING! No prices in " + file.getAbsolutePath() + ", skipping it.");
+				return Collections.emptyMap();
+			}
+			List<String> headers = Arrays.stream(lines.get(0).split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)"))
+					.map(h -> h.trim().replace("\"", "").toLowerCase()).collect(Collectors.toList());
+			int priceColumn = headers.indexOf("price");
+			if (priceColumn == -1) {
+				priceColumn = headers.indexOf("open");
+			}
+			if (priceColumn == -1) {
+				priceColumn = 1;
+			}
+
+			Map<LocalDate, BigDecimal> prices = new HashMap<>();
+			for (String line : lines.subList(1, lines.size())) {
+				// Commas inside quotes, such as "1,234.56"
+				String[] cells = line.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
+				prices.putIfAbsent(parseDate(cells[0]), new BigDecimal(
+						cells[priceColumn].trim().replace("\"", "").replace("$", "").replace(",", "")));
+			}
+			System.out.println("Loaded " + prices.size() + " local prices for " + symbol);
+			return prices;
+
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to read " + file.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	}
+}
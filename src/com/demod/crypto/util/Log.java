@@ -0,0 +1,295 @@
+package com.demod.crypto.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Console and log file output for the scripts, written from a background thread so the work never waits on the console
+// The console shows INFO and above by default, pick another level with -Dlog.level=debug (or warn, error)
+// Everything including DEBUG goes to a log file, only if one is given with -Dlog.file=path
+// System.out is routed through here at INFO and System.err at ERROR, so plain prints stay in order with everything else
+// Shutdown work that prints should use addShutdownHook here, the log is flushed after it has run
+public final class Log {
+
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	private static class Entry {
+		private final Level level;
+		private final String text;
+		// Progress lines are redrawn in place, and never go to the log file
+		private final boolean progress;
+		// A prompt has no line ending, and waits for the user on the same line
+		private final boolean partial;
+		private final CountDownLatch flushed;
+
+		public Entry(Level level, String text, boolean progress, boolean partial, CountDownLatch flushed) {
+			this.level = level;
+			this.text = text;
+			this.progress = progress;
+			this.partial = partial;
+			this.flushed = flushed;
+		}
+	}
+
+	// Collects System.out or System.err into lines
+	private static class LineOutputStream extends OutputStream {
+		private final Level level;
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		public LineOutputStream(Level level) {
+			this.level = level;
+		}
+
+		@Override
+		public synchronized void flush() {
+			if (buffer.size() > 0) {
+				queue.add(new Entry(level, takeBuffer(), false, true, null));
+			}
+			Log.flush();
+		}
+
+		private String takeBuffer() {
+			String str = buffer.toString(charset);
+			buffer.reset();
+			return str;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			int start = off;
+			for (int i = off; i < off + len; i++) {
+				if (b[i] == '\n') {
+					buffer.write(b, start, i - start);
+					write('\n');
+					start = i + 1;
+				}
+			}
+			buffer.write(b, start, off + len - start);
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			if (b == '\n') {
+				String line = takeBuffer();
+				if (line.endsWith("\r")) {
+					line = line.substring(0, line.length() - 1);
+				}
+				queue.add(new Entry(level, line, false, false, null));
+			} else {
+				buffer.write(b);
+			}
+		}
+	}
+
+	private static final long PROGRESS_INTERVAL_MS = 250;
+
+	private static final Charset charset = Charset.defaultCharset();
+	private static final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+	private static final PrintStream console = new PrintStream(
+			new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, charset);
+	private static final Level consoleLevel = Level.valueOf(System.getProperty("log.level", "info").toUpperCase());
+	private static final PrintWriter file = openFile(System.getProperty("log.file"));
+
+	private static final List<Runnable> shutdownHooks = new ArrayList<>();
+
+	private static volatile long lastProgressTime = 0;
+
+	// Only touched by the writer thread
+	private static String progressText = null;
+
+	static {
+		System.out.flush();
+		System.err.flush();
+		System.setOut(new PrintStream(new LineOutputStream(Level.INFO), false, charset));
+		System.setErr(new PrintStream(new LineOutputStream(Level.ERROR), false, charset));
+
+		Thread writer = new Thread(Log::writeLoop, "Log Writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// The only JVM shutdown hook, so the hooks added here run before the last flush, in the order added
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			List<Runnable> hooks;
+			synchronized (shutdownHooks) {
+				hooks = new ArrayList<>(shutdownHooks);
+			}
+			for (Runnable hook : hooks) {
+				try {
+					hook.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			System.err.flush();
+			System.out.flush();
+			if (file != null) {
+				file.close();
+			}
+		}));
+	}
+
+	// Runs at shutdown, before the log is flushed for the last time
+	public static void addShutdownHook(Runnable hook) {
+		synchronized (shutdownHooks) {
+			shutdownHooks.add(hook);
+		}
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	// Waits until everything logged so far has been written out
+	public static void flush() {
+		CountDownLatch flushed = new CountDownLatch(1);
+		queue.add(new Entry(null, null, false, false, flushed));
+		try {
+			flushed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	private static boolean isConsoleEnabled(Level level) {
+		return level.ordinal() <= consoleLevel.ordinal();
+	}
+
+	// False if the message would not be written anywhere, to skip building detail that is never shown
+	public static boolean isEnabled(Level level) {
+		return isConsoleEnabled(level) || file != null;
+	}
+
+	public static void log(Level level, String message) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		if (message.endsWith("\n")) {
+			message = message.substring(0, message.length() - 1);
+		}
+		queue.add(new Entry(level, message, false, false, null));
+	}
+
+	private static PrintWriter openFile(String path) {
+		if (path == null) {
+			return null;
+		}
+		try {
+			return new PrintWriter(path, charset);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	}
+
+	// A single line on the console that is redrawn in place, at most a few times a second
+	// Not shown at DEBUG, since the detail lines would scroll it away anyway
+	public static void progress(String label, long done, long total) {
+		if (isConsoleEnabled(Level.DEBUG) || !isConsoleEnabled(Level.INFO)) {
+			return;
+		}
+		boolean finished = done >= total;
+		long now = System.currentTimeMillis();
+		if (!finished && now - lastProgressTime < PROGRESS_INTERVAL_MS) {
+			return;
+		}
+		lastProgressTime = now;
+		long percent = total > 0 ? (done * 100) / total : 100;
+		String text = label + " " + done + "/" + total + " (" + percent + "%)";
+		queue.add(new Entry(Level.INFO, text, true, finished, null));
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	private static void clearProgress() {
+		if (progressText != null) {
+			console.print('\r');
+			console.print(" ".repeat(progressText.length()));
+			console.print('\r');
+		}
+	}
+
+	private static void write(Entry entry) {
+		if (entry.flushed != null) {
+			console.flush();
+			if (file != null) {
+				file.flush();
+			}
+			entry.flushed.countDown();
+
+		} else if (entry.progress) {
+			clearProgress();
+			console.print(entry.text);
+			progressText = entry.text;
+			// Finished, leave the last count on its own line
+			if (entry.partial) {
+				console.println();
+				progressText = null;
+			}
+
+		} else {
+			// Prompts are always shown, even when the console is quieter than INFO
+			if (isConsoleEnabled(entry.level) || entry.partial) {
+				clearProgress();
+				if (entry.partial) {
+					console.print(entry.text);
+					progressText = null;
+				} else {
+					console.println(entry.text);
+					if (progressText != null) {
+						console.print(progressText);
+					}
+				}
+			}
+			if (file != null && !entry.partial) {
+				String prefix = entry.level.name() + " ";
+				file.println(prefix + entry.text.replace("\n", "\n" + prefix));
+			}
+		}
+	}
+
+	private static void writeLoop() {
+		List<Entry> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch);
+			for (Entry entry : batch) {
+				write(entry);
+			}
+			batch.clear();
+			if (queue.isEmpty()) {
+				console.flush();
+			}
+		}
+	}
+
+	private Log() {
+	}
+}
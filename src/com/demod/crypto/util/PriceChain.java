@@ -0,0 +1,140 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+// Asks each tier in order until one has the price, the answer is remembered in memory
+// Default order is memory, local csv files, overrides, then CoinGecko (left out with -Dprices.offline=true)
+// Local files and overrides are taken to be in the reporting currency
+public class PriceChain implements PriceProvider {
+
+	private static class TierStats {
+		private final String name;
+		private final LongAdder lookups = new LongAdder();
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+
+		public TierStats(String name) {
+			this.name = name;
+		}
+	}
+
+	public static PriceChain createDefault(String currency) {
+		List<PriceProvider> tiers = new ArrayList<>();
+		CoinGeckoAPI coinGecko = null;
+		tiers.add(new LocalPriceFiles(new File("data/prices")));
+		tiers.add(new PriceOverrides(new File("data/price-overrides.json")));
+		if (Boolean.getBoolean("prices.offline")) {
+			System.out.println("Prices are offline, CoinGecko will not be used");
+		} else {
+			coinGecko = CoinGeckoAPI.getDefault();
+			tiers.add(coinGecko.forCurrency(currency));
+		}
+		return new PriceChain(tiers, coinGecko, currency);
+	}
+
+	private final List<PriceProvider> tiers;
+	private final CoinGeckoAPI coinGecko;
+	private final String currency;
+
+	private final ConcurrentHashMap<String, Optional<BigDecimal>> memory = new ConcurrentHashMap<>();
+	private final TierStats memoryStats = new TierStats("Memory");
+	private final List<TierStats> tierStats = new ArrayList<>();
+
+	public PriceChain(List<PriceProvider> tiers, CoinGeckoAPI coinGecko, String currency) {
+		this.tiers = tiers;
+		this.coinGecko = coinGecko;
+		this.currency = currency;
+		for (PriceProvider tier : tiers) {
+			tierStats.add(new TierStats(tier.getName()));
+		}
+	}
+
+	// Null if the remote tier is not in the chain
+	public CoinGeckoAPI getCoinGecko() {
+		return coinGecko;
+	}
+
+	public String getCurrency() {
+		return currency;
+	}
+
+	// Stablecoins are counted as exactly one dollar, in other currencies they are priced like any other coin
+	public boolean isStablecoinPriced() {
+		return !currency.equals(CoinGeckoAPI.DEFAULT_CURRENCY);
+	}
+
+	@Override
+	public String getName() {
+		return "Chain";
+	}
+
+	@Override
+	public BigDecimal getPrice(String symbol, LocalDate date) {
+		String key = symbol.toUpperCase() + " " + date.toEpochDay();
+
+		long startNanos = System.nanoTime();
+		Optional<BigDecimal> remembered = memory.get(key);
+		memoryStats.lookups.increment();
+		memoryStats.nanos.add(System.nanoTime() - startNanos);
+		if (remembered != null) {
+			memoryStats.hits.increment();
+			return remembered.orElse(null);
+		}
+
+		BigDecimal price = null;
+		for (int i = 0; i < tiers.size() && price == null; i++) {
+			TierStats stats = tierStats.get(i);
+			startNanos = System.nanoTime();
+			price = tiers.get(i).getPrice(symbol, date);
+			stats.lookups.increment();
+			stats.nanos.add(System.nanoTime() - startNanos);
+			if (price != null) {
+				stats.hits.increment();
+			}
+		}
+
+		memory.put(key, Optional.ofNullable(price));
+		return price;
+	}
+
+	@Override
+	public String getVersion() {
+		return currency + "|"
+				+ tiers.stream().map(t -> t.getName() + ":" + t.getVersion()).collect(Collectors.joining("|"));
+	}
+
+	@Override
+	public boolean hasSymbol(String symbol) {
+		return tiers.stream().anyMatch(t -> t.hasSymbol(symbol));
+	}
+
+	// Without asking remote tiers
+	public boolean hasLocalPrice(String symbol, LocalDate date) {
+		if (memory.containsKey(symbol.toUpperCase() + " " + date.toEpochDay())) {
+			return true;
+		}
+		return tiers.stream().filter(t -> !t.isRemote()).anyMatch(t -> t.getPrice(symbol, date) != null);
+	}
+
+	public void printStats() {
+		System.out.println("Price Lookups (" + currency.toUpperCase() + "):");
+		List<TierStats> allStats = new ArrayList<>();
+		allStats.add(memoryStats);
+		allStats.addAll(tierStats);
+		for (TierStats stats : allStats) {
+			long lookups = stats.lookups.sum();
+			long hits = stats.hits.sum();
+			System.out.println(String.format("\t%-12s %8d lookups, %8d hits (%5.1f%%), %10.1f us avg", stats.name,
+					lookups, hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+					lookups == 0 ? 0.0 : stats.nanos.sum() / 1000.0 / lookups));
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Prices are appended one line at a time, instead of rewriting the whole cache per price
+// The log is replayed at startup, the snapshot (the old cache json) only when loadSnapshot() is called
+// A current PriceTable already has everything in the snapshot, so until then only newer prices are here
+// Both are folded together when compacted
+public class PriceLog {
+	public static final int COMPACT_LINES = 5000;
+
+	private final File snapshotFile;
+	private final File logFile;
+	private final File rotatedLogFile;
+	private final File tableFile;
+	private final Object compactLock = new Object();
+
+	// Missing prices are Optional.empty(), reads do not need the lock
+	private final Map<String, ConcurrentHashMap<String, Optional<BigDecimal>>> prices = new ConcurrentHashMap<>();
+
+	private FileOutputStream logStream;
+	private PrintWriter logWriter;
+	private int logLines = 0;
+	private boolean compacting = false;
+	private volatile boolean snapshotLoaded = false;
+
+	private final ExecutorService compactExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "PriceLog Compact");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public PriceLog(File snapshotFile, File logFile, File tableFile) throws IOException {
+		this.snapshotFile = snapshotFile;
+		this.logFile = logFile;
+		this.tableFile = tableFile;
+		rotatedLogFile = new File(logFile.getPath() + ".old");
+
+		for (File file : new File[] { rotatedLogFile, logFile }) {
+			if (!file.exists()) {
+				continue;
+			}
+			for (String line : Files.readAllLines(file.toPath())) {
+				if (line.isBlank()) {
+					continue;
+				}
+				try {
+					JSONObject json = new JSONObject(line);
+					put(json.getString("id"), json.getString("date"), json.optBigDecimal("price", null));
+					logLines++;
+				} catch (JSONException e) {
+					// Partially written line from a force stop, the price will be fetched again
+					System.err.println("Skipping bad price log line: " + e.getMessage());
+				}
+			}
+		}
+
+		openLog();
+
+		Log.addShutdownHook(() -> {
+			try {
+				compact();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	// Missing prices are stored as false, so they are not fetched again
+	public void append(String id, String dateStr, BigDecimal price) throws IOException {
+		Map<String, BigDecimal> datePrices = new HashMap<>();
+		datePrices.put(dateStr, price);
+		append(id, datePrices);
+	}
+
+	// All of the dates are written with a single sync
+	public void append(String id, Map<String, BigDecimal> datePrices) throws IOException {
+		Map<String, Map<String, BigDecimal>> idDatePrices = new HashMap<>();
+		idDatePrices.put(id, datePrices);
+		append(idDatePrices);
+	}
+
+	// Every id and date is written with a single sync
+	public synchronized void append(Map<String, Map<String, BigDecimal>> idDatePrices) throws IOException {
+		for (Entry<String, Map<String, BigDecimal>> idEntry : idDatePrices.entrySet()) {
+			String id = idEntry.getKey();
+			for (Entry<String, BigDecimal> entry : idEntry.getValue().entrySet()) {
+				String dateStr = entry.getKey();
+				BigDecimal price = entry.getValue();
+				put(id, dateStr, price);
+
+				JSONObject json = new JSONObject();
+				json.put("id", id);
+				json.put("date", dateStr);
+				json.put("price", price != null ? price : false);
+				logWriter.println(json.toString());
+				logLines++;
+			}
+		}
+		logWriter.flush();
+		logStream.getFD().sync();
+
+		if (logLines >= COMPACT_LINES && !compacting) {
+			compacting = true;
+			compactExecutor.submit(() -> {
+				try {
+					compact();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		}
+	}
+
+	// The log is rotated and the cache serialized under the lock, the slow file writing is not
+	// If stopped in between, the rotated log is replayed over the old snapshot, giving the same result
+	// The price table is rebuilt to match the new snapshot
+	public void compact() throws IOException {
+		synchronized (compactLock) {
+			String snapshotStr = null;
+			ByteBuffer tableBuffer;
+			synchronized (this) {
+				compacting = false;
+				if (logLines == 0 && snapshotFile.exists() && PriceTable.isCurrent(tableFile, snapshotFile)) {
+					return;
+				}
+				loadSnapshot();
+				if (logLines > 0 || !snapshotFile.exists()) {
+					snapshotStr = toJson().toString(2);
+				}
+				tableBuffer = PriceTable.build(prices);
+				if (logLines > 0) {
+					logWriter.close();
+					if (rotatedLogFile.exists()) {// Left over from an interrupted compact
+						Files.write(rotatedLogFile.toPath(), Files.readAllBytes(logFile.toPath()),
+								StandardOpenOption.APPEND);
+						Files.delete(logFile.toPath());
+					} else {
+						Files.move(logFile.toPath(), rotatedLogFile.toPath());
+					}
+					logLines = 0;
+					openLog();
+				}
+			}
+
+			if (snapshotStr != null) {
+				File tempFile = new File(snapshotFile.getPath() + ".tmp");
+				Files.writeString(tempFile.toPath(), snapshotStr);
+				Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				Files.deleteIfExists(rotatedLogFile.toPath());
+			}
+
+			try {
+				PriceTable.write(tableFile, snapshotFile, tableBuffer);
+			} catch (IOException e) {
+				// Windows will not replace a file that is still mapped
+				System.err.println("Price table not updated, it will be rebuilt next run: " + e.getMessage());
+			}
+		}
+	}
+
+	// Null if missing on CoinGecko, check has() first
+	public BigDecimal get(String id, String dateStr) {
+		Map<String, Optional<BigDecimal>> dates = prices.get(id);
+		return dates != null ? dates.getOrDefault(dateStr, Optional.empty()).orElse(null) : null;
+	}
+
+	public boolean has(String id, String dateStr) {
+		Map<String, Optional<BigDecimal>> dates = prices.get(id);
+		return dates != null && dates.containsKey(dateStr);
+	}
+
+	// Logged prices are newer, so they are kept over the snapshot
+	public synchronized void loadSnapshot() throws IOException {
+		if (snapshotLoaded) {
+			return;
+		}
+		if (snapshotFile.exists()) {
+			JSONObject cacheJson = new JSONObject(Files.readString(snapshotFile.toPath()));
+			for (String id : cacheJson.keySet()) {
+				JSONObject datesJson = cacheJson.getJSONObject(id);
+				Map<String, Optional<BigDecimal>> dates = prices.computeIfAbsent(id, k -> new ConcurrentHashMap<>());
+				for (String dateStr : datesJson.keySet()) {
+					dates.putIfAbsent(dateStr, Optional.ofNullable(datesJson.optBigDecimal(dateStr, null)));
+				}
+			}
+		}
+		snapshotLoaded = true;
+	}
+
+	private void openLog() throws IOException {
+		logStream = new FileOutputStream(logFile, true);
+		logWriter = new PrintWriter(new OutputStreamWriter(logStream, StandardCharsets.UTF_8));
+	}
+
+	private void put(String id, String dateStr, BigDecimal price) {
+		prices.computeIfAbsent(id, k -> new ConcurrentHashMap<>()).put(dateStr, Optional.ofNullable(price));
+	}
+
+	// Same format as the old cache file
+	private JSONObject toJson() {
+		JSONObject json = new JSONObject();
+		prices.forEach((id, dates) -> {
+			JSONObject datesJson = new JSONObject();
+			dates.forEach((dateStr, price) -> datesJson.put(dateStr, price.isPresent() ? price.get() : false));
+			json.put(id, datesJson);
+		});
+		return json;
+	}
+}
@@ -0,0 +1,65 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Prices set by hand, for example { "SHIT": { "*": 0 }, "ABC": { "2021-05-01": 1.25 } }
+// The "*" date is used for any day that is not listed
+public class PriceOverrides implements PriceProvider {
+
+	private final Map<String, JSONObject> symbolOverrides = new HashMap<>();
+	private final String version;
+
+	public PriceOverrides(File file) {
+		version = file.exists() ? file.length() + "@" + file.lastModified() : "";
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			JSONObject json = new JSONObject(Files.readString(file.toPath()));
+			for (String symbol : json.keySet()) {
+				symbolOverrides.put(symbol.toUpperCase(), json.getJSONObject(symbol));
+			}
+		} catch (JSONException | IOException e) {
+			System.err.println("Failed to read " + file.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "Overrides";
+	}
+
+	@Override
+	public BigDecimal getPrice(String symbol, LocalDate date) {
+		JSONObject datesJson = symbolOverrides.get(symbol.toUpperCase());
+		if (datesJson == null) {
+			return null;
+		}
+		BigDecimal price = datesJson.optBigDecimal(date.toString(), null);
+		if (price == null) {
+			price = datesJson.optBigDecimal("*", null);
+		}
+		return price;
+	}
+
+	@Override
+	public String getVersion() {
+		return version;
+	}
+
+	@Override
+	public boolean hasSymbol(String symbol) {
+		return symbolOverrides.containsKey(symbol.toUpperCase());
+	}
+}
@@ -0,0 +1,182 @@
+package com.demod.crypto.util;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.collect.TreeMultimap;
+
+// Collects every (symbol, date) price a script will need, then fetches the missing ones grouped by coin
+// Scripts 3 and 4 run afterwards from the cache, without waiting on CoinGecko
+public class PricePlanner {
+
+	private static class PlannedCall {
+		private final String label;
+		private final Runnable fetch;
+
+		public PlannedCall(String label, Runnable fetch) {
+			this.label = label;
+			this.fetch = fetch;
+		}
+	}
+
+	private static final DateTimeFormatter FMT_DATE_JSON = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private final PriceChain prices;
+	private final CoinGeckoAPI coinGecko;
+	private final String currency;
+	private final TaxConfig config;
+
+	private final TreeMultimap<String, LocalDate> needed = TreeMultimap.create();
+
+	public PricePlanner(PriceChain prices, TaxConfig config) {
+		this.prices = prices;
+		coinGecko = prices.getCoinGecko();
+		currency = prices.getCurrency();
+		this.config = config;
+	}
+
+	public void add(String symbol, LocalDate date) {
+		needed.put(symbol, date);
+	}
+
+	// Same transfers that script 3 will price
+	public void addTransactions(Iterable<JSONObject> transactions, SpamClassifier spamClassifier) {
+		nextTx: for (JSONObject txJson : transactions) {
+			if (!txJson.getBoolean("success")) {
+				continue;
+			}
+			LocalDate date = LocalDateTime.parse(txJson.getString("timestamp"), FMT_DATE_JSON).toLocalDate();
+
+			List<String> symbols = new ArrayList<>();
+			JSONArray tokenTransfersJson = txJson.getJSONArray("token-transfers");
+			for (int j = 0; j < tokenTransfersJson.length(); j++) {
+				JSONObject ttJson = tokenTransfersJson.getJSONObject(j);
+				if (spamClassifier.isSpam(ttJson)) {
+					continue;
+				}
+				String ttSymbol = ttJson.getString("token-symbol");
+				ttSymbol = config.rename(ttSymbol);
+				if (config.isExcluded(ttSymbol)) {
+					continue nextTx;
+				}
+				if (config.isStablecoin(ttSymbol) && !prices.isStablecoinPriced()) {
+					continue;
+				}
+				if (config.isWallet(ttJson.getString("from-address").toLowerCase())
+						|| config.isWallet(ttJson.getString("to-address").toLowerCase())) {
+					symbols.add(ttSymbol);
+				}
+			}
+			for (String symbol : symbols) {
+				add(symbol, date);
+			}
+
+			if (config.isWallet(txJson.getString("from").toLowerCase())) {
+				add(txJson.getString("native-symbol"), date);
+			}
+		}
+	}
+
+	// Prints the plan with an ETA, then runs it
+	// A range call fills a whole year, so each coin-year costs one call no matter how many days are missing
+	public void prefetch() {
+		if (coinGecko == null) {
+			return;
+		}
+
+		int neededCount = 0;
+		int localCount = 0;
+		int cachedCount = 0;
+		int unknownCount = 0;
+		TreeMap<String, NavigableSet<LocalDate>> missingById = new TreeMap<>();
+		List<String> ambiguousSymbols = new ArrayList<>();
+		for (String symbol : needed.keySet()) {
+			NavigableSet<LocalDate> dates = new TreeSet<>(needed.get(symbol));
+			neededCount += dates.size();
+			int datesCount = dates.size();
+			dates.removeIf(d -> prices.hasLocalPrice(symbol, d));
+			localCount += datesCount - dates.size();
+			if (dates.isEmpty()) {
+				continue;
+			}
+			List<String> ids = coinGecko.getSymbolIds(symbol);
+			if (ids.size() > 1) {
+				ambiguousSymbols.add(symbol + " (" + dates.size() + " prices): " + String.join(", ", ids));
+			}
+			String id = ids.isEmpty() ? null : coinGecko.getSymbolId(symbol);
+			if (id == null) {
+				unknownCount += dates.size();
+				continue;
+			}
+			CoinGeckoAPI.CachedPrices cached = coinGecko.getCachedPrices(id, currency);
+			for (LocalDate date : dates) {
+				if (cached.has(date)) {
+					cachedCount++;
+				} else {
+					missingById.computeIfAbsent(id, k -> new TreeSet<>()).add(date);
+				}
+			}
+		}
+
+		LocalDate yesterday = LocalDate.now(ZoneOffset.UTC).minusDays(1);
+		List<PlannedCall> calls = new ArrayList<>();
+		int rangeCount = 0;
+		for (Entry<String, NavigableSet<LocalDate>> entry : missingById.entrySet()) {
+			String id = entry.getKey();
+			TreeMultimap<Integer, LocalDate> byYear = TreeMultimap.create();
+			entry.getValue().forEach(d -> byYear.put(d.getYear(), d));
+			for (int year : byYear.keySet()) {
+				NavigableSet<LocalDate> dates = byYear.get(year);
+				NavigableSet<LocalDate> rangeDates = dates.headSet(yesterday, true);
+				LocalDate first = LocalDate.of(year, 1, 1);
+				LocalDate last = LocalDate.of(year, 12, 31).isAfter(yesterday) ? yesterday : LocalDate.of(year, 12, 31);
+				if (!rangeDates.isEmpty() && coinGecko.isRangeFillWorthwhile(id, first, last, currency)) {
+					calls.add(new PlannedCall(id + " " + year + " (" + rangeDates.size() + " days)",
+							() -> coinGecko.fillHistoricalPrices_Range(id, first, last, currency)));
+					rangeCount++;
+				} else {
+					for (LocalDate date : rangeDates) {
+						calls.add(new PlannedCall(id + " " + date,
+								() -> coinGecko.fetchHistoricalPrice(id, date, currency)));
+					}
+				}
+				for (LocalDate date : dates.tailSet(yesterday, false)) {
+					calls.add(
+							new PlannedCall(id + " " + date, () -> coinGecko.fetchHistoricalPrice(id, date, currency)));
+				}
+			}
+		}
+
+		Duration eta = Duration.ofMillis(Math.max(0, calls.size() - 1) * CoinGeckoAPI.API_RATE_MS);
+		System.out.println("Price Plan (" + currency.toUpperCase() + "): " + neededCount + " prices needed, "
+				+ localCount + " local, " + cachedCount + " cached, " + unknownCount + " without a CoinGecko id");
+		System.out.println("\t" + (neededCount - localCount - cachedCount - unknownCount) + " prices for "
+				+ missingById.size() + " coins in " + calls.size() + " calls (" + rangeCount + " range, "
+				+ (calls.size() - rangeCount) + " single), ETA "
+				+ String.format("%d:%02d:%02d", eta.toHours(), eta.toMinutesPart(), eta.toSecondsPart()));
+
+		if (!ambiguousSymbols.isEmpty()) {
+			System.out.println("Symbols shared by more than one CoinGecko coin, these will have no price unless"
+					+ " one is picked in coingecko-symbol-pref.json:");
+			ambiguousSymbols.forEach(s -> System.out.println("\t" + s));
+		}
+
+		for (int i = 0; i < calls.size(); i++) {
+			PlannedCall call = calls.get(i);
+			System.out.println("\t(" + (i + 1) + "/" + calls.size() + ") " + call.label);
+			call.fetch.run();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.demod.crypto.util;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+// One tier of the PriceChain
+public interface PriceProvider {
+
+	String getName();
+
+	// Null if this provider does not have the price, the next tier will be asked
+	BigDecimal getPrice(String symbol, LocalDate date);
+
+	// If this provider has any prices for the symbol, without going to the network
+	boolean hasSymbol(String symbol);
+
+	// Changes whenever the prices given could change, so saved results that used them can be checked
+	default String getVersion() {
+		return "";
+	}
+
+	// Remote providers are skipped when checking what can be priced locally
+	default boolean isRemote() {
+		return false;
+	}
+}
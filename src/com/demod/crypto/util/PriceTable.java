@@ -0,0 +1,217 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+
+// Compiled copy of the price cache, so lookups are array reads instead of json parsing and string keys
+// Each coin has a dense run of days, one unscaled long per day followed by one scale byte per day
+// Prices are kept exactly as the PriceLog has them, any that do not fit are left for the PriceLog to answer
+// Only used while the cache json it was built from is unchanged, anything newer is still found in the PriceLog
+// Callers look up the coin index once with indexOf(), then read days by epoch day
+public class PriceTable {
+	public static final long UNKNOWN = Long.MIN_VALUE;// Not in the cache json
+	public static final long MISSING = Long.MIN_VALUE + 1;// CoinGecko has no price
+	public static final long OVERFLOW = Long.MIN_VALUE + 2;// In the cache json, but does not fit
+
+	private static final int MAGIC = 0x43475054;// CGPT
+	private static final int VERSION = 1;
+
+	private static final int OFFSET_SNAPSHOT_MODIFIED = 8;
+	private static final int OFFSET_SNAPSHOT_LENGTH = 16;
+
+	private static final DateTimeFormatter fmtDate = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+
+	// Header values for the cache json are filled in by write()
+	public static ByteBuffer build(Map<String, ? extends Map<String, Optional<BigDecimal>>> prices) {
+		List<String> ids = new ArrayList<>(prices.keySet());
+		List<byte[]> idBytes = new ArrayList<>();
+		int[] firstDays = new int[ids.size()];
+		int[] dayCounts = new int[ids.size()];
+
+		int directorySize = 0;
+		long dataSize = 0;
+		for (int i = 0; i < ids.size(); i++) {
+			byte[] bytes = ids.get(i).getBytes(StandardCharsets.UTF_8);
+			idBytes.add(bytes);
+			directorySize += 2 + bytes.length + 4 + 4 + 8;
+
+			long minDay = Long.MAX_VALUE;
+			long maxDay = Long.MIN_VALUE;
+			for (String dateStr : prices.get(ids.get(i)).keySet()) {
+				long day = LocalDate.parse(dateStr, fmtDate).toEpochDay();
+				minDay = Math.min(minDay, day);
+				maxDay = Math.max(maxDay, day);
+			}
+			if (minDay > maxDay) {
+				minDay = maxDay = 0;
+			}
+			firstDays[i] = (int) minDay;
+			dayCounts[i] = (int) (maxDay - minDay + 1);
+			dataSize += 9L * dayCounts[i];
+		}
+
+		int headerSize = 4 + 4 + 8 + 8 + 4;
+		long totalSize = headerSize + directorySize + dataSize;
+		if (totalSize > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Price table too large! " + totalSize);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) totalSize);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(0);
+		buffer.putLong(0);
+		buffer.putInt(ids.size());
+
+		long dataOffset = headerSize + directorySize;
+		for (int i = 0; i < ids.size(); i++) {
+			buffer.putShort((short) idBytes.get(i).length);
+			buffer.put(idBytes.get(i));
+			buffer.putInt(firstDays[i]);
+			buffer.putInt(dayCounts[i]);
+			buffer.putLong(dataOffset);
+			dataOffset += 9L * dayCounts[i];
+		}
+
+		for (int i = 0; i < ids.size(); i++) {
+			int start = buffer.position();
+			int scaleStart = start + dayCounts[i] * 8;
+			for (int d = 0; d < dayCounts[i]; d++) {
+				buffer.putLong(start + d * 8, UNKNOWN);
+			}
+			for (Entry<String, Optional<BigDecimal>> entry : prices.get(ids.get(i)).entrySet()) {
+				int index = (int) (LocalDate.parse(entry.getKey(), fmtDate).toEpochDay() - firstDays[i]);
+				long value = MISSING;
+				int scale = 0;
+				if (entry.getValue().isPresent()) {
+					BigDecimal price = entry.getValue().get();
+					scale = price.scale();
+					value = OVERFLOW;
+					if (price.unscaledValue().bitLength() < 64 && scale >= Byte.MIN_VALUE && scale <= Byte.MAX_VALUE) {
+						long unscaled = price.unscaledValue().longValue();
+						if (unscaled > OVERFLOW) {
+							value = unscaled;
+						}
+					}
+				}
+				buffer.putLong(start + index * 8, value);
+				buffer.put(scaleStart + index, (byte) scale);
+			}
+			buffer.position(start + dayCounts[i] * 9);
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	// Checks the header only
+	public static boolean isCurrent(File tableFile, File snapshotFile) {
+		if (!tableFile.exists() || !snapshotFile.exists()) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(24);
+			while (header.hasRemaining() && channel.read(header) != -1) {
+			}
+			return !header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+					&& header.getLong(OFFSET_SNAPSHOT_MODIFIED) == snapshotFile.lastModified()
+					&& header.getLong(OFFSET_SNAPSHOT_LENGTH) == snapshotFile.length();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Null if the table is missing, unreadable, or older than the cache json
+	public static PriceTable open(File tableFile, File snapshotFile) {
+		if (!isCurrent(tableFile, snapshotFile)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			return new PriceTable(buffer);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Ignoring price table: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// The table remembers which cache json it matches
+	public static void write(File tableFile, File snapshotFile, ByteBuffer buffer) throws IOException {
+		buffer.putLong(OFFSET_SNAPSHOT_MODIFIED, snapshotFile.lastModified());
+		buffer.putLong(OFFSET_SNAPSHOT_LENGTH, snapshotFile.length());
+		File tempFile = new File(tableFile.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer writeBuffer = buffer.duplicate();
+			writeBuffer.rewind();
+			while (writeBuffer.hasRemaining()) {
+				channel.write(writeBuffer);
+			}
+		}
+		Files.move(tempFile.toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private final ByteBuffer buffer;
+	private final Map<String, Integer> coinIndex = new HashMap<>();
+	private final int[] firstDays;
+	private final int[] dayCounts;
+	private final int[] dataOffsets;
+
+	private PriceTable(ByteBuffer buffer) {
+		this.buffer = buffer;
+		int coinCount = buffer.getInt(24);
+		firstDays = new int[coinCount];
+		dayCounts = new int[coinCount];
+		dataOffsets = new int[coinCount];
+
+		ByteBuffer directory = buffer.duplicate();
+		directory.position(28);
+		for (int i = 0; i < coinCount; i++) {
+			byte[] idBytes = new byte[directory.getShort()];
+			directory.get(idBytes);
+			coinIndex.put(new String(idBytes, StandardCharsets.UTF_8), i);
+			firstDays[i] = directory.getInt();
+			dayCounts[i] = directory.getInt();
+			dataOffsets[i] = (int) directory.getLong();
+		}
+	}
+
+	public int getCoinCount() {
+		return firstDays.length;
+	}
+
+	// Unscaled price, or UNKNOWN, MISSING or OVERFLOW
+	public long getUnscaled(int coin, long epochDay) {
+		long index = epochDay - firstDays[coin];
+		if (index < 0 || index >= dayCounts[coin]) {
+			return UNKNOWN;
+		}
+		return buffer.getLong(dataOffsets[coin] + (int) index * 8);
+	}
+
+	public int getScale(int coin, long epochDay) {
+		return buffer.get(dataOffsets[coin] + dayCounts[coin] * 8 + (int) (epochDay - firstDays[coin]));
+	}
+
+	// -1 if the coin is not in the table
+	public int indexOf(String id) {
+		return coinIndex.getOrDefault(id, -1);
+	}
+}
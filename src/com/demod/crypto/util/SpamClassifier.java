@@ -0,0 +1,193 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Flags scam airdrop tokens by contract address, so script 3 skips them before any price lookup
+// Saved in data/spam-tokens.json per chain, set "spam" to false to keep a token, or delete its entry to check again
+public class SpamClassifier {
+
+	private static class TokenStats {
+		private final String symbol;
+		private final String name;
+		private int incoming = 0;
+		private int solicited = 0;
+		private int outgoing = 0;
+
+		public TokenStats(String symbol, String name) {
+			this.symbol = symbol;
+			this.name = name;
+		}
+	}
+
+	private static final Pattern URL_PATTERN = Pattern.compile(
+			"(?i)(https?:|www\\.|t\\.me/|\\.(com|io|org|net|xyz|finance|app|site|me|live|gift|vip|cc|top)\\b)");
+
+	private final File file;
+	private final JSONObject json;
+	private final JSONObject chainJson;
+
+	public SpamClassifier(File file, String chain) {
+		this.file = file;
+		JSONObject json = new JSONObject();
+		if (file.exists()) {
+			try {
+				json = new JSONObject(Files.readString(file.toPath()));
+			} catch (JSONException | IOException e) {
+				System.err.println("Failed to read " + file.getAbsolutePath());
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		this.json = json;
+		if (!json.has(chain)) {
+			json.put(chain, new JSONObject());
+		}
+		chainJson = json.getJSONObject(chain);
+	}
+
+	// Null if not spam
+	private String check(TokenStats stats) {
+		if (URL_PATTERN.matcher(stats.symbol).find()) {
+			return "Link in symbol";
+		}
+		// Only ever sent to us by someone else, and never moved
+		if (stats.incoming > 0 && stats.solicited == 0 && stats.outgoing == 0) {
+			// Some real tokens have a domain as the name, such as yearn.finance
+			if (stats.name != null && URL_PATTERN.matcher(stats.name).find()) {
+				return "Unsolicited, link in name";
+			}
+			if (stats.symbol.isBlank()) {
+				return "Unsolicited, no symbol";
+			}
+		}
+		return null;
+	}
+
+	// Real airdrops are often too new to have a price, so this is only reported, never skipped
+	private String checkSuspect(TokenStats stats, PriceProvider prices) {
+		if (stats.incoming > 0 && stats.solicited == 0 && stats.outgoing == 0 && !prices.hasSymbol(stats.symbol)) {
+			return "Unsolicited, never sent out, no price source or CoinGecko id knows the symbol";
+		}
+		return null;
+	}
+
+	// One pass over every token transfer, only tokens without a saved verdict are checked
+	// Every token skipped as spam or reported as possible spam is listed with its reason, on every run
+	public void classify(Iterable<JSONObject> transactions, TaxConfig config, PriceProvider prices)
+			throws IOException {
+		Map<String, TokenStats> newTokens = new LinkedHashMap<>();
+		Map<String, JSONObject> savedSpam = new LinkedHashMap<>();
+		Map<String, JSONObject> savedSuspects = new LinkedHashMap<>();
+		for (JSONObject txJson : transactions) {
+			if (!txJson.getBoolean("success")) {
+				continue;
+			}
+			boolean txFromMyWallet = config.isWallet(txJson.getString("from").toLowerCase());
+
+			JSONArray tokenTransfersJson = txJson.getJSONArray("token-transfers");
+			for (int j = 0; j < tokenTransfersJson.length(); j++) {
+				JSONObject ttJson = tokenTransfersJson.getJSONObject(j);
+				String address = getTokenAddress(ttJson);
+				if (address == null) {
+					continue;
+				}
+				if (chainJson.has(address)) {
+					JSONObject tokenJson = chainJson.getJSONObject(address);
+					if (tokenJson.optBoolean("spam")) {
+						savedSpam.put(address, tokenJson);
+					} else if (tokenJson.has("suspect")) {
+						savedSuspects.put(address, tokenJson);
+					}
+					continue;
+				}
+				String ttSymbol = ttJson.getString("token-symbol");
+				ttSymbol = config.rename(ttSymbol);
+				if (config.isStablecoin(ttSymbol)) {
+					continue;
+				}
+				TokenStats stats = newTokens.get(address);
+				if (stats == null) {
+					newTokens.put(address, stats = new TokenStats(ttSymbol, ttJson.optString("token-name", null)));
+				}
+				if (config.isWallet(ttJson.getString("from-address").toLowerCase())) {
+					stats.outgoing++;
+				}
+				if (config.isWallet(ttJson.getString("to-address").toLowerCase())) {
+					stats.incoming++;
+					if (txFromMyWallet) {
+						stats.solicited++;
+					}
+				}
+			}
+		}
+
+		if (!savedSpam.isEmpty()) {
+			System.out.println("Skipping " + savedSpam.size() + " tokens marked as spam in " + file.getName() + ":");
+			for (Entry<String, JSONObject> entry : savedSpam.entrySet()) {
+				JSONObject tokenJson = entry.getValue();
+				System.out.println("\tSpam: " + tokenJson.optString("symbol") + " (" + entry.getKey() + ") "
+						+ tokenJson.optString("reason", "set by hand"));
+			}
+		}
+		if (!savedSuspects.isEmpty()) {
+			System.out.println("Possible spam, set \"spam\" to true in " + file.getName() + " to skip:");
+			for (Entry<String, JSONObject> entry : savedSuspects.entrySet()) {
+				JSONObject tokenJson = entry.getValue();
+				System.out.println("\tPossible spam: " + tokenJson.optString("symbol") + " (" + entry.getKey() + ") "
+						+ tokenJson.getString("suspect"));
+			}
+		}
+
+		if (newTokens.isEmpty()) {
+			return;
+		}
+
+		System.out.println("Checking " + newTokens.size() + " new tokens for spam...");
+		for (Entry<String, TokenStats> entry : newTokens.entrySet()) {
+			TokenStats stats = entry.getValue();
+			String reason = check(stats);
+			JSONObject tokenJson = new JSONObject();
+			tokenJson.put("symbol", stats.symbol);
+			tokenJson.put("spam", reason != null);
+			if (reason != null) {
+				tokenJson.put("reason", reason);
+				System.out.println("\tNew spam: " + stats.symbol + " (" + entry.getKey() + ") " + reason);
+			} else {
+				String suspect = checkSuspect(stats, prices);
+				if (suspect != null) {
+					tokenJson.put("suspect", suspect);
+					System.out.println("\tPossible spam: " + stats.symbol + " (" + entry.getKey() + ") " + suspect);
+				} else {
+					System.out.println("\tNot spam: " + stats.symbol + " (" + entry.getKey() + ")");
+				}
+			}
+			chainJson.put(entry.getKey(), tokenJson);
+		}
+		Files.writeString(file.toPath(), json.toString(2));
+	}
+
+	// Native coin transfers have no token address
+	private String getTokenAddress(JSONObject ttJson) {
+		String address = ttJson.optString("token-address", null);
+		return address != null ? address.toLowerCase() : null;
+	}
+
+	public boolean isSpam(JSONObject ttJson) {
+		String address = getTokenAddress(ttJson);
+		if (address == null) {
+			return false;
+		}
+		JSONObject tokenJson = chainJson.optJSONObject(address);
+		return tokenJson != null && tokenJson.optBoolean("spam");
+	}
+}
@@ -0,0 +1,158 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+
+// Symbol to CoinGecko ids, compiled from the coin lists so they do not need to be parsed every run
+// Rebuilt when any of the source files change
+public class SymbolIndex {
+	public static final String INDEX_FILE_NAME = "coingecko-symbol-index.tsv";
+
+	private static final String[] SOURCE_FILE_NAMES = { "coingecko-coins-list.json", "coingecko-coins-top250.json",
+			"coingecko-symbol-pref.json" };
+
+	private static SymbolIndex build(File dataFolder) throws JSONException, IOException {
+		System.out.println("Building CoinGecko Symbol Index...");
+		ArrayListMultimap<String, String> map = ArrayListMultimap.create();
+
+		{
+			File file = new File(dataFolder, "coingecko-coins-list.json");
+			Preconditions.checkState(file.exists());
+			JSONArray json = new JSONArray(Files.readString(file.toPath()));
+			for (int i = 0; i < json.length(); i++) {
+				JSONObject coinJson = json.getJSONObject(i);
+				String id = coinJson.getString("id");
+				String symbol = coinJson.getString("symbol");
+				map.put(symbol.toUpperCase(), id);
+			}
+		}
+		{
+			File file = new File(dataFolder, "coingecko-coins-top250.json");
+			Preconditions.checkState(file.exists());
+			JSONArray json = new JSONArray(Files.readString(file.toPath()));
+			for (int i = json.length() - 1; i >= 0; i--) {
+				JSONObject coinJson = json.getJSONObject(i);
+				String id = coinJson.getString("id");
+				String symbol = coinJson.getString("symbol");
+				map.removeAll(symbol.toUpperCase());
+				map.put(symbol.toUpperCase(), id);
+			}
+		}
+		{
+			File file = new File(dataFolder, "coingecko-symbol-pref.json");
+			Preconditions.checkState(file.exists());
+			JSONObject json = new JSONObject(Files.readString(file.toPath()));
+			for (String symbol : json.keySet()) {
+				String id = json.optString(symbol, null);
+				map.removeAll(symbol.toUpperCase());
+				map.put(symbol.toUpperCase(), id);
+			}
+		}
+
+		Map<String, List<String>> symbolToIds = new HashMap<>();
+		for (String symbol : map.keySet()) {
+			symbolToIds.put(symbol, Collections.unmodifiableList(new ArrayList<>(map.get(symbol))));
+		}
+		return new SymbolIndex(symbolToIds, getSourcesStamp(dataFolder));
+	}
+
+	// Modified time and size of each source file
+	private static String getSourcesStamp(File dataFolder) {
+		StringBuilder sb = new StringBuilder("#");
+		for (String name : SOURCE_FILE_NAMES) {
+			File file = new File(dataFolder, name);
+			sb.append(" ").append(name).append(" ").append(file.lastModified()).append(" ").append(file.length());
+		}
+		return sb.toString();
+	}
+
+	public static SymbolIndex load(File dataFolder) throws IOException {
+		File indexFile = new File(dataFolder, INDEX_FILE_NAME);
+		String stamp = getSourcesStamp(dataFolder);
+
+		if (indexFile.exists()) {
+			List<String> lines = Files.readAllLines(indexFile.toPath());
+			if (!lines.isEmpty() && lines.get(0).equals(stamp)) {
+				Map<String, List<String>> symbolToIds = new HashMap<>(lines.size() * 2);
+				for (String line : lines.subList(1, lines.size())) {
+					int split = line.indexOf('\t');
+					String idsStr = line.substring(split + 1);
+					// Blank is a null id from the pref file, meaning ignore the price
+					List<String> ids = idsStr.isEmpty() ? Collections.singletonList(null)
+							: Arrays.asList(idsStr.split(","));
+					symbolToIds.put(line.substring(0, split), ids);
+				}
+				SymbolIndex index = new SymbolIndex(symbolToIds, stamp);
+				index.printAmbiguous();
+				return index;
+			}
+		}
+
+		SymbolIndex index = build(dataFolder);
+		try (PrintWriter pw = new PrintWriter(indexFile)) {
+			pw.println(stamp);
+			for (Entry<String, List<String>> entry : new TreeMap<>(index.symbolToIds).entrySet()) {
+				List<String> ids = entry.getValue();
+				pw.println(entry.getKey() + "\t" + (ids.contains(null) ? "" : String.join(",", ids)));
+			}
+		}
+		System.out.println("\t" + index.symbolToIds.size() + " symbols");
+		index.printAmbiguous();
+		return index;
+	}
+
+	private final Map<String, List<String>> symbolToIds;
+	private final String sourcesStamp;
+
+	private SymbolIndex(Map<String, List<String>> symbolToIds, String sourcesStamp) {
+		this.symbolToIds = symbolToIds;
+		this.sourcesStamp = sourcesStamp;
+	}
+
+	// Empty if unknown, more than one if ambiguous
+	public List<String> getIds(String symbol) {
+		return symbolToIds.getOrDefault(symbol.toUpperCase(), Collections.emptyList());
+	}
+
+	// Changes whenever any of the source files change
+	public String getSourcesStamp() {
+		return sourcesStamp;
+	}
+
+	public boolean isAmbiguous(String symbol) {
+		return getIds(symbol).size() > 1;
+	}
+
+	// Every run, so they can be picked before a long run instead of showing up as missing prices
+	private void printAmbiguous() {
+		TreeMap<String, List<String>> ambiguous = new TreeMap<>();
+		symbolToIds.forEach((symbol, ids) -> {
+			if (ids.size() > 1) {
+				ambiguous.put(symbol, ids);
+			}
+		});
+		if (ambiguous.isEmpty()) {
+			return;
+		}
+		System.out.println(ambiguous.size()
+				+ " CoinGecko symbols are shared by more than one coin, pick one in coingecko-symbol-pref.json:");
+		ambiguous.forEach((symbol, ids) -> System.out.println("\t" + symbol + ": " + String.join(", ", ids)));
+	}
+}
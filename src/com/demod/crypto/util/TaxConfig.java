@@ -0,0 +1,85 @@
+package com.demod.crypto.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import com.google.common.base.Preconditions;
+
+// The wallets and symbol lists from data/config.json, compiled once into lookup tables for scripts 3 and 4
+// Wallet addresses are lower cased once here, callers pass lower case addresses (toLowerCase() returns the same
+// string when it already is, as in data.json)
+// Only read after it is built, so it can be shared between threads
+public class TaxConfig {
+
+	public static TaxConfig load(File file) throws IOException {
+		Preconditions.checkState(file.exists());
+		return new TaxConfig(new JSONObject(Files.readString(file.toPath())));
+	}
+
+	private final JSONObject json;
+
+	private final Map<String, String> accountByAddress = new HashMap<>();
+	private final Map<String, String> renameSymbols = new HashMap<>();
+	private final Set<String> stablecoinSymbols = new HashSet<>();
+	private final Set<String> excludeSymbols = new HashSet<>();
+
+	public TaxConfig(JSONObject json) {
+		this.json = json;
+
+		JSONObject walletsJson = json.getJSONObject("wallets");
+		for (String address : walletsJson.keySet()) {
+			accountByAddress.put(address.toLowerCase(), walletsJson.getString(address).intern());
+		}
+		JSONObject renameSymbolsJson = json.getJSONObject("rename-symbols");
+		for (String symbol : renameSymbolsJson.keySet()) {
+			renameSymbols.put(symbol, renameSymbolsJson.getString(symbol).intern());
+		}
+		JSONObject stableCoinSymbolsJson = json.getJSONObject("stablecoin-symbols");
+		for (String symbol : stableCoinSymbolsJson.keySet()) {
+			if (stableCoinSymbolsJson.optBoolean(symbol)) {
+				stablecoinSymbols.add(symbol);
+			}
+		}
+		JSONObject excludeSymbolsJson = json.getJSONObject("exclude-symbols");
+		for (String symbol : excludeSymbolsJson.keySet()) {
+			if (excludeSymbolsJson.optBoolean(symbol)) {
+				excludeSymbols.add(symbol);
+			}
+		}
+	}
+
+	// Takes a lower case address, null if it is not one of our wallets
+	public String getAccount(String address) {
+		return accountByAddress.get(address);
+	}
+
+	public JSONObject getJson() {
+		return json;
+	}
+
+	// Takes the renamed symbol
+	public boolean isExcluded(String symbol) {
+		return excludeSymbols.contains(symbol);
+	}
+
+	// Takes the renamed symbol
+	public boolean isStablecoin(String symbol) {
+		return stablecoinSymbols.contains(symbol);
+	}
+
+	// Takes a lower case address
+	public boolean isWallet(String address) {
+		return accountByAddress.containsKey(address);
+	}
+
+	public String rename(String symbol) {
+		return renameSymbols.getOrDefault(symbol, symbol);
+	}
+}
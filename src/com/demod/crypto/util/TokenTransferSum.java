@@ -110,6 +110,7 @@ public class TokenTransferSum {
 		}
 	}
 
+	private final PriceChain prices;
 	private final LocalDate date;
 	private final boolean stablecoin;
 	private final String symbol;
@@ -118,7 +119,8 @@ public class TokenTransferSum {
 
 	private Optional<BigDecimal> price = null;
 
-	public TokenTransferSum(LocalDate date, boolean stablecoin, String symbol) {
+	public TokenTransferSum(PriceChain prices, LocalDate date, boolean stablecoin, String symbol) {
+		this.prices = prices;
 		this.date = date;
 		this.stablecoin = stablecoin;
 		this.symbol = symbol;
@@ -134,10 +136,10 @@ public class TokenTransferSum {
 
 	private void checkPrice() {
 		if (price == null) {
-			if (stablecoin) {
+			if (stablecoin && !prices.isStablecoinPriced()) {
 				price = Optional.of(BigDecimal.ONE);
-			} else if (date != null && CoinGeckoAPI.hasSymbol(symbol)) {
-				price = Optional.ofNullable(CoinGeckoAPI.getHistoricalPrice(symbol, date));
+			} else if (date != null) {
+				price = Optional.ofNullable(prices.getPrice(symbol, date));
 			} else {
 				price = Optional.empty();
 			}
@@ -157,6 +159,11 @@ public class TokenTransferSum {
 		return price.map(p -> p.multiply(amount.abs()));
 	}
 
+	public boolean hasPrice() {
+		checkPrice();
+		return price.isPresent();
+	}
+
 	public boolean isIncoming() {
 		return amount.compareTo(BigDecimal.ZERO) > 0;
 	}